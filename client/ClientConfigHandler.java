@@ -8,9 +8,12 @@ import java.io.IOException;
 
 public class ClientConfigHandler {
 
-    public record ClientConfig(String ServerAddress, Integer TCPPort, String RegHost, Integer RegPort){}
+    /**
+     * @param Protocol codec used to talk with the server, "binary" or "json". Missing in older config files, json is used then
+     */
+    public record ClientConfig(String ServerAddress, Integer TCPPort, String RegHost, Integer RegPort, String Protocol){}
 
-     static final ClientConfig defaults = new ClientConfig("localhost", 1080, "localhost", 1846);
+     static final ClientConfig defaults = new ClientConfig("localhost", 1080, "localhost", 1846, "binary");
 
     public static ClientConfig loadConfigs() {
         ObjectMapper om = new ObjectMapper(new YAMLFactory());
@@ -1,5 +1,6 @@
 package client;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import common.*;
 
@@ -24,6 +25,16 @@ public class ClientMain {
 
     public static InetSocketAddress multicastGroup = null;
 
+    //shared mapper to serialize requests and parse login responses
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    //id of the last request sent, echoed by the server in the response
+    private static int requestCounter = 0;
+    //flag asking the server to run the request after the previous ones, the client waits for each answer anyway
+    private static final byte ORDERED = 0x01;
+    //true if the requests are sent with the binary codec instead of json
+    private static boolean binaryProtocol = false;
+
     public static void main(String[] args) {
 
         //read the configs from local file or generate a default one
@@ -62,6 +73,13 @@ public class ClientMain {
                     }
                 }
 
+                //tell the server to use the binary codec for this connection
+                binaryProtocol = "binary".equalsIgnoreCase(config.Protocol());
+                if (binaryProtocol) {
+                    ByteBuffer handshake = ByteBuffer.wrap(new byte[]{BinaryCodec.HANDSHAKE});
+                    while (handshake.hasRemaining()) serverChannel.write(handshake);
+                }
+
                 System.out.println("Client ready! Type help for available commands. Login or register to authenticate, shutdown or logout to exit.");
                 while (!shutdown) {
 
@@ -144,6 +162,11 @@ public class ClientMain {
                                     System.out.println("Registration Failed.");
                                 }
                             }
+                            case 7, 22, 32 -> {
+                                String page = sendOpToServerNIO(tri, serverChannel);
+                                CommandParser.saveCursor(op, page); //remember where the next page starts
+                                System.out.println(page);
+                            }
                             default -> System.out.println(sendOpToServerNIO(tri, serverChannel)); //send the command to the server through TCP
                         }
                     } catch (IOException e) {
@@ -187,54 +210,79 @@ public class ClientMain {
             return "You need to authenticate first.";
         }
 
-            //Serialize the triplet to json string to send it
-            byte[] toSend = new ObjectMapper().writeValueAsString(instruction).getBytes(StandardCharsets.UTF_8);
-            ByteBuffer buffer = ByteBuffer.allocate(toSend.length);
+        ByteBuffer response = sendRequest(instruction, serverChannel);
+        if (response == null) return "";
+        //skip the status of binary responses, the message follows
+        if (binaryProtocol) response.get();
+        return StandardCharsets.UTF_8.decode(response).toString().trim();
+    }
 
+    /**
+     * Send the request and wait for the response body, if the operation has one.
+     *
+     * @return body of the response, or null if the operation does not expect it
+     */
+    private static ByteBuffer sendRequest(Triplet instruction, SocketChannel serverChannel) throws IOException {
+
+            //Serialize the triplet and send it, prefixed by its length, request id and flags
+            byte[] toSend = binaryProtocol ? BinaryCodec.encodeRequest(instruction) : mapper.writeValueAsBytes(instruction);
+            ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES + Byte.BYTES + toSend.length);
+            int requestId = ++requestCounter;
+
+            buffer.putInt(Integer.BYTES + Byte.BYTES + toSend.length);
+            buffer.putInt(requestId);
+            buffer.put(ORDERED);
             buffer.put(toSend);
             buffer.flip();
-            int byteWritten = serverChannel.write(buffer);
-
-            while (byteWritten < toSend.length) {
-                byteWritten += serverChannel.write(buffer);
+            while (buffer.hasRemaining()) {
+                serverChannel.write(buffer);
             }
 
             //switch to read the response if needed
             if (instruction.op() > 0) {
 
-                //read the size of the incoming response
-                ByteBuffer sizeBuf = ByteBuffer.allocate(Integer.BYTES);
-                serverChannel.read(sizeBuf);
-                sizeBuf.flip();
-                int bytesToRead = sizeBuf.getInt();
-
-                //read the response from the server
-                String response = "";
-                buffer = ByteBuffer.allocate(bytesToRead);
-                int bytesRead = 0;
-                while (bytesToRead > 0) {
-                    bytesRead = serverChannel.read(buffer);
-                    bytesToRead =- bytesRead;
-                    buffer.flip();
-                    byte[] toConvert = new byte[bytesRead];
-                    buffer.get(toConvert);
-                    String received = new String(toConvert, StandardCharsets.UTF_8).trim();
-                    response = response.concat(received);
-                    buffer.clear();
-                }
-                return response;
+                ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+                int responseId;
+                do {
+                    //read the size of the incoming response and the id of the request it answers
+                    header.clear();
+                    readFully(header, serverChannel);
+                    int bytesToRead = header.getInt() - Integer.BYTES;
+                    responseId = header.getInt();
+
+                    //read the response from the server
+                    buffer = ByteBuffer.allocate(bytesToRead);
+                    readFully(buffer, serverChannel);
+                } while (responseId != requestId); //skip answers to requests that are not awaited anymore
+                return buffer;
             }
 
-        return "";
+        return null;
+    }
+
+    //read from the channel until the buffer is full, then flip it
+    private static void readFully(ByteBuffer buffer, SocketChannel serverChannel) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (serverChannel.read(buffer) < 0) throw new EOFException("Connection closed by the server");
+        }
+        buffer.flip();
     }
 
     public static Triplet tryLogin(Triplet input, SocketChannel serverChannel) throws IOException {
-        String result = sendOpToServerNIO(input, serverChannel);
-        if (result != null && !result.isBlank()) {
-            ObjectMapper mapper = new ObjectMapper();
-            return mapper.readValue(result, Triplet.class);
+        ByteBuffer response = sendRequest(input, serverChannel);
+        if (response == null || !response.hasRemaining()) return null;
+
+        if (binaryProtocol) {
+            byte status = response.get();
+            if (status == BinaryCodec.LOGIN) return BinaryCodec.decodeLogin(response);
+            return new Triplet(StandardCharsets.UTF_8.decode(response).toString(), -1, null);
+        }
+        try {
+            return mapper.readValue(response.array(), response.arrayOffset() + response.position(), response.remaining(), Triplet.class);
+        } catch (JsonProcessingException e) {
+            //not a login result, like the answer of a server too busy, show it as the reason of the failure
+            return new Triplet(StandardCharsets.UTF_8.decode(response).toString(), -1, null);
         }
-        return null;
     }
 
     public static Triplet tryRegister(Triplet input, ServerProxy proxy) throws RemoteException {
@@ -3,8 +3,12 @@ package client;
 
 import common.Triplet;
 
+import java.util.Map;
 import java.util.Scanner;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class CommandParser {
 
@@ -16,10 +20,12 @@ public class CommandParser {
                 shutdown | Close both client and server\s
                 logout | Exit from account and close the client\s
                 blog | Shows your blog\s
+                blog more | Shows your blog a page at a time, repeat to get the next page\s
                 list user | List the users with at least one tag in common with you\s
                 list followers | List your followers\s
                 list following | List the users you are following\s
                 show feed | Show your feed\s
+                show feed more | Show your feed a page at a time, repeat to get the next page\s
                 show post <postId> | Show the post\s
                 post <"Title"> <"Content"> | Title and Content needs to be enclosed between " " \s
                 delete <postId> | Delete the post. Only usable by the author of the post \s
@@ -30,6 +36,8 @@ public class CommandParser {
                 unfollow <username> | Stop following the user \s
                 wallet | Get your wincoins wallet \s
                 wallet btc | Get your wincoins wallet converted in Bitcoins\s
+                wallet more | Get your wincoins transactions a page at a time, repeat to get the next page\s
+                search <terms> | Search the posts containing the terms, best matches first\s
                 """);
     }
 
@@ -58,7 +66,7 @@ public class CommandParser {
                     } : NOT_ENOUGH_ARGS_CODE;
             case "follow" -> tokens.length > 1 ? 4 : NOT_ENOUGH_ARGS_CODE;
             case "unfollow" -> tokens.length > 1 ? 5 : NOT_ENOUGH_ARGS_CODE;
-            case "blog" -> 6;
+            case "blog" -> (tokens.length > 1 && tokens[1].equals("more")) ? 7 : 6;
             case "post" -> tokens.length > 2 ? 10 : NOT_ENOUGH_ARGS_CODE;
             case "delete" -> tokens.length > 1 ? 11 : NOT_ENOUGH_ARGS_CODE;
             case "rewin" -> tokens.length > 1 ? 12 : NOT_ENOUGH_ARGS_CODE;
@@ -66,11 +74,16 @@ public class CommandParser {
             case "rate" -> tokens.length > 2 ? 14 : NOT_ENOUGH_ARGS_CODE;
             case "show" -> tokens.length > 1 ?
                     switch (tokens[1]) {
-                        case "feed" -> 20;
+                        case "feed" -> (tokens.length > 2 && tokens[2].equals("more")) ? 22 : 20;
                         case "post" -> tokens.length > 2 ? 21 : NOT_ENOUGH_ARGS_CODE;
                         default -> UNKNOWN_OP_CODE;
                     } : NOT_ENOUGH_ARGS_CODE;
-            case "wallet" -> (tokens.length > 1 && tokens[1].equals("btc")) ? 31 : 30;
+            case "wallet" -> tokens.length > 1 ? switch (tokens[1]) {
+                        case "btc" -> 31;
+                        case "more" -> 32;
+                        default -> 30;
+                    } : 30;
+            case "search" -> tokens.length > 1 ? 40 : NOT_ENOUGH_ARGS_CODE;
             default -> UNKNOWN_OP_CODE;
         };
 
@@ -78,12 +91,34 @@ public class CommandParser {
             case 0 -> tokens[0];
             case NOT_ENOUGH_ARGS_CODE, UNKNOWN_OP_CODE -> input;
             case 21 -> input.substring(1 + tokens[0].length() + tokens[1].length()).trim();
+            case 7, 22, 32 -> cursors.getOrDefault(opCode, 0L) + " " + PAGE_SIZE;
             default -> input.substring(tokens[0].length()).trim();
         };
 
         return new Triplet(format, opCode, userToken);
     }
 
+    /**
+     * Save the cursor of the next page from the response of a paginated operation.
+     * After the last page, the next request starts again from the first one.
+     *
+     * @param opCode paginated operation
+     * @param response response of the server
+     */
+    public static void saveCursor(int opCode, String response) {
+        Matcher matcher = NEXT_CURSOR.matcher(response);
+        if (matcher.find()) {
+            cursors.put(opCode, Long.parseLong(matcher.group(1)));
+        } else {
+            cursors.remove(opCode);
+        }
+    }
+
+    //cursor of the next page of each paginated operation
+    private static final Map<Integer, Long> cursors = new ConcurrentHashMap<>();
+    private static final Pattern NEXT_CURSOR = Pattern.compile("Next cursor: (\\d+)");
+    private static final int PAGE_SIZE = 20;
+
     public static final int NOT_ENOUGH_ARGS_CODE = -3;
     public static final int UNKNOWN_OP_CODE = -2;
 
@@ -0,0 +1,161 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compact binary encoding of requests and responses, alternative to the json Triplet.
+ * A client selects it by sending HANDSHAKE as the very first byte on the connection.
+ * <p>
+ * Request body: opcode (1 byte), user token as raw UUID (16 bytes, all zero if missing), number of arguments (1 byte),
+ * then each argument as a type byte followed by a 4-byte int or by a 2-byte length and the UTF-8 text.
+ * <p>
+ * Response body: status byte, followed by the UTF-8 text, or by the login data for LOGIN responses.
+ */
+public class BinaryCodec {
+
+    //first byte sent by binary clients, json clients start with the high byte of a frame length, always 0
+    public static final byte HANDSHAKE = (byte) 0xB1;
+
+    //argument types
+    static final byte INT = 0;
+    static final byte WORD = 1;
+    static final byte TEXT = 2;
+
+    //response status
+    public static final byte OK = 0;
+    public static final byte AUTH_ERROR = 1;
+    public static final byte LOGIN = 2;
+    public static final byte LOGIN_FAILED = 3;
+    public static final byte BUSY = 4;
+
+    //quoted text or single word of the command line arguments
+    private static final Pattern ARGUMENT = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+    private static final Pattern INTEGER = Pattern.compile("-?\\d{1,9}");
+
+    /**
+     * Encode a request, splitting the arguments in numbers, words and quoted texts.
+     *
+     * @param request request to encode
+     * @return the request body
+     */
+    public static byte[] encodeRequest(Triplet request) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 16 + 1 + 3 * request.args().length() + 3 * 255);
+        buffer.put((byte) request.op());
+        UUID token = request.token();
+        buffer.putLong(token != null ? token.getMostSignificantBits() : 0);
+        buffer.putLong(token != null ? token.getLeastSignificantBits() : 0);
+
+        int countPosition = buffer.position();
+        buffer.put((byte) 0);
+        int count = 0;
+        Matcher matcher = ARGUMENT.matcher(request.args());
+        while (matcher.find() && count < 255) {
+            if (matcher.group(1) != null) {
+                putText(buffer, TEXT, matcher.group(1));
+            } else if (isInt(matcher.group(2))) {
+                buffer.put(INT).putInt(Integer.parseInt(matcher.group(2)));
+            } else {
+                putText(buffer, WORD, matcher.group(2));
+            }
+            count++;
+        }
+        buffer.put(countPosition, (byte) count);
+
+        byte[] encoded = new byte[buffer.position()];
+        buffer.flip().get(encoded);
+        return encoded;
+    }
+
+    /**
+     * Decode a request body. The arguments are joined back in the command line format, quoting texts.
+     *
+     * @param buffer buffer positioned at the start of the body, the position is moved after it
+     * @return the decoded request
+     * @throws IllegalArgumentException if the body is malformed
+     */
+    public static Triplet decodeRequest(ByteBuffer buffer) {
+        try {
+            int op = buffer.get();
+            long most = buffer.getLong();
+            long least = buffer.getLong();
+            UUID token = most == 0 && least == 0 ? null : new UUID(most, least);
+
+            int count = Byte.toUnsignedInt(buffer.get());
+            StringBuilder args = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                if (i > 0) args.append(' ');
+                byte type = buffer.get();
+                switch (type) {
+                    case INT -> args.append(buffer.getInt());
+                    case WORD -> args.append(getText(buffer));
+                    case TEXT -> args.append('"').append(getText(buffer)).append('"');
+                    default -> throw new IllegalArgumentException("Unknown argument type: " + type);
+                }
+            }
+            return new Triplet(args.toString(), op, token);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed binary request", e);
+        }
+    }
+
+    /**
+     * @param status status of the response
+     * @param text message of the response
+     * @return the response body
+     */
+    public static byte[] encodeResponse(byte status, String text) {
+        byte[] message = text.getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = new byte[1 + message.length];
+        encoded[0] = status;
+        System.arraycopy(message, 0, encoded, 1, message.length);
+        return encoded;
+    }
+
+    /**
+     * @param login triplet with the multicast address, the multicast port and the user token
+     * @return the body of a LOGIN response
+     */
+    public static byte[] encodeLogin(Triplet login) {
+        byte[] address = login.args().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 16 + Integer.BYTES + Short.BYTES + address.length);
+        buffer.put(LOGIN);
+        buffer.putLong(login.token().getMostSignificantBits());
+        buffer.putLong(login.token().getLeastSignificantBits());
+        buffer.putInt(login.op());
+        buffer.putShort((short) address.length);
+        buffer.put(address);
+        return buffer.array();
+    }
+
+    /**
+     * @param buffer body of a LOGIN response, after the status byte
+     * @return triplet with the multicast address, the multicast port and the user token
+     */
+    public static Triplet decodeLogin(ByteBuffer buffer) {
+        UUID token = new UUID(buffer.getLong(), buffer.getLong());
+        int port = buffer.getInt();
+        return new Triplet(getText(buffer), port, token);
+    }
+
+    //only words written as the int prints them, so "0123" or "-0" are decoded back the same
+    private static boolean isInt(String word) {
+        return INTEGER.matcher(word).matches() && Integer.toString(Integer.parseInt(word)).equals(word);
+    }
+
+    private static void putText(ByteBuffer buffer, byte type, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        buffer.put(type).putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getText(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        String text = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return text;
+    }
+
+}
@@ -0,0 +1,105 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the requests waiting for or under execution, globally and for each connection.
+ * <p>
+ * When a connection reaches MaxInFlightPerConnection, or the server reaches MaxInFlight and the connection has
+ * requests running, its reactor stops reading from it until some of them complete.
+ * Past ShedThreshold, requests are answered right away with a busy response without being executed.
+ */
+public class AdmissionControl {
+
+    static final String BUSY_MESSAGE = "Server busy, try again later.";
+
+    private final int maxInFlight;
+    private final int maxPerConnection;
+    private final int shedThreshold;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    //counters to monitor the server load
+    private final AtomicLong shedRequests = new AtomicLong();
+    private final AtomicLong pausedConnections = new AtomicLong();
+    private long lastLoggedShed = 0;
+
+    public AdmissionControl(int maxInFlight, int maxPerConnection, int shedThreshold) {
+        this.maxInFlight = maxInFlight;
+        this.maxPerConnection = maxPerConnection;
+        this.shedThreshold = shedThreshold;
+    }
+
+    /**
+     * @param connection connection that sent the request
+     * @return true if the connection must stop sending requests until some of its requests complete
+     */
+    public boolean mustPause(BufferWrapper connection) {
+        int running = connection.inFlight();
+        return running >= maxPerConnection || (running > 0 && inFlight.get() >= maxInFlight);
+    }
+
+    /**
+     * @return true if the next request must be answered with a busy response
+     */
+    public boolean mustShed() {
+        return inFlight.get() >= shedThreshold;
+    }
+
+    /**
+     * Count a request submitted for execution.
+     *
+     * @param connection connection that sent the request
+     */
+    public void admit(BufferWrapper connection) {
+        inFlight.incrementAndGet();
+        connection.requestStarted();
+    }
+
+    /**
+     * Count a request completed, once its response is queued.
+     *
+     * @param connection connection that sent the request
+     * @return true if the server just went back under the global limit, so paused connections may be resumed
+     */
+    public boolean complete(BufferWrapper connection) {
+        connection.requestCompleted();
+        return inFlight.getAndDecrement() == maxInFlight;
+    }
+
+    public void requestShed() {
+        shedRequests.incrementAndGet();
+    }
+
+    public void connectionPaused() {
+        pausedConnections.incrementAndGet();
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public long shedRequests() {
+        return shedRequests.get();
+    }
+
+    public long pausedConnections() {
+        return pausedConnections.get();
+    }
+
+    /**
+     * Add the load counters to the log when requests have been shed since the last call.
+     */
+    public void logIfShedding() {
+        long shed = shedRequests.get();
+        if (shed != lastLoggedShed) {
+            String stats = String.format("Load shedding: %d requests rejected (+%d), %d connections paused, %d requests in flight",
+                    shed, shed - lastLoggedShed, pausedConnections.get(), inFlight.get());
+            System.out.println(stats);
+            ServerMain.logger.add(stats);
+            lastLoggedShed = shed;
+        }
+    }
+
+}
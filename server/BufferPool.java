@@ -0,0 +1,83 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers shared by the reactors and the workers, divided in size classes.
+ * Buffers are taken to encode a response and given back once it has been written to the channel.
+ */
+public class BufferPool {
+
+    //capacities of the pooled buffers, the smallest one is used for the frame headers
+    static final int[] SIZE_CLASSES = {64, 1024, 8 * 1024, 64 * 1024};
+
+    private final Queue<ByteBuffer>[] free;
+    private final AtomicInteger[] pooled;
+    private final int maxPerClass;
+
+    /**
+     * @param maxPerClass maximum number of idle buffers kept for each size class
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxPerClass) {
+        this.maxPerClass = maxPerClass;
+        free = new Queue[SIZE_CLASSES.length];
+        pooled = new AtomicInteger[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            pooled[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @return the capacity of the biggest pooled buffer
+     */
+    public int maxBufferSize() {
+        return SIZE_CLASSES[SIZE_CLASSES.length - 1];
+    }
+
+    /**
+     * Take a buffer from the pool, allocating it if none is available.
+     *
+     * @param size minimum capacity needed, must not be bigger than maxBufferSize
+     * @return a cleared buffer of the smallest size class that can hold size bytes
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = classOf(size);
+        if (sizeClass < 0) throw new IllegalArgumentException("Buffer size over the pool limit: " + size);
+
+        ByteBuffer buffer = free[sizeClass].poll();
+        if (buffer == null) return ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+
+        pooled[sizeClass].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool, it must not be used by the caller anymore.
+     *
+     * @param buffer buffer taken with acquire
+     */
+    public void release(ByteBuffer buffer) {
+        int sizeClass = classOf(buffer.capacity());
+        //drop buffers not coming from the pool, or the ones exceeding the limit
+        if (!buffer.isDirect() || sizeClass < 0 || SIZE_CLASSES[sizeClass] != buffer.capacity()) return;
+        if (pooled[sizeClass].incrementAndGet() > maxPerClass) {
+            pooled[sizeClass].decrementAndGet();
+            return;
+        }
+        free[sizeClass].add(buffer);
+    }
+
+    private static int classOf(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) return i;
+        }
+        return -1;
+    }
+
+}
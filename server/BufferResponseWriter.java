@@ -0,0 +1,126 @@
+package server;
+
+import common.BinaryCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ResponseWriter encoding the text in UTF-8 as it's written, straight into buffers taken from the pool.
+ * The buffers become the chunks of the response frame, so the response is never copied after being rendered.
+ * Not thread safe, a writer is used by the worker executing a single request.
+ */
+public class BufferResponseWriter implements ResponseWriter {
+
+    //most responses are short, the following chunks grow up to the biggest pooled buffer
+    private static final int FIRST_CHUNK_SIZE = 1024;
+
+    private final BufferPool pool;
+    //true if the body starts with the status byte of the binary codec
+    private final boolean withStatus;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer current;
+
+    /**
+     * @param pool pool of the buffers
+     * @param withStatus true to start the body with the OK status of the binary codec
+     */
+    public BufferResponseWriter(BufferPool pool, boolean withStatus) {
+        this.pool = pool;
+        this.withStatus = withStatus;
+        start();
+    }
+
+    private void start() {
+        current = pool.acquire(FIRST_CHUNK_SIZE);
+        chunks.add(current);
+        if (withStatus) current.put(BinaryCodec.OK);
+    }
+
+    private void nextChunk() {
+        current = pool.acquire(Math.min(pool.maxBufferSize(), current.capacity() * 8));
+        chunks.add(current);
+    }
+
+    @Override
+    public ResponseWriter append(CharSequence text) {
+        CharBuffer in = CharBuffer.wrap(text);
+        encoder.reset();
+        while (encoder.encode(in, current, true).isOverflow()) nextChunk();
+        while (encoder.flush(current).isOverflow()) nextChunk();
+        return this;
+    }
+
+    @Override
+    public ResponseWriter append(char c) {
+        //ascii is encoded as it is
+        if (c < 0x80) {
+            if (!current.hasRemaining()) nextChunk();
+            current.put((byte) c);
+            return this;
+        }
+        return append(String.valueOf(c));
+    }
+
+    @Override
+    public ResponseWriter write(byte[] utf8) {
+        int offset = 0;
+        while (offset < utf8.length) {
+            if (!current.hasRemaining()) nextChunk();
+            int length = Math.min(current.remaining(), utf8.length - offset);
+            current.put(utf8, offset, length);
+            offset += length;
+        }
+        return this;
+    }
+
+    /**
+     * @param status status of the binary codec to send instead of OK, ignored if the body has no status
+     */
+    public void setStatus(byte status) {
+        if (withStatus) chunks.get(0).put(0, status);
+    }
+
+    @Override
+    public void reset() {
+        release();
+        start();
+    }
+
+    /**
+     * Complete the response, the writer must not be used anymore.
+     *
+     * @param requestId id of the request being answered
+     * @return header with the frame length and the request id, followed by the body chunks, ready to be written
+     */
+    public ByteBuffer[] finish(int requestId) {
+        ByteBuffer[] message = new ByteBuffer[1 + chunks.size()];
+        int length = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            message[i + 1] = chunks.get(i).flip();
+            length += message[i + 1].remaining();
+        }
+        message[0] = pool.acquire(2 * Integer.BYTES);
+        message[0].putInt(Integer.BYTES + length);
+        message[0].putInt(requestId);
+        message[0].flip();
+        chunks.clear();
+        return message;
+    }
+
+    /**
+     * Give the buffers back to the pool without sending the response.
+     */
+    public void release() {
+        for (ByteBuffer chunk : chunks) pool.release(chunk);
+        chunks.clear();
+    }
+}
@@ -1,13 +1,75 @@
 package server;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import common.BinaryCodec;
+import common.Triplet;
+
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static server.ServerMain.bufferPool;
 
+/**
+ * Per-connection state: keeps the bytes read from the channel between selector wakeups
+ * and decodes them into requests once a whole frame has arrived. Encoded responses are queued
+ * here by the workers and written by the selector thread when the channel is writable.
+ * <p>
+ * Wire format of a request: 4-byte big endian length of the rest of the frame, 4-byte request id chosen by the client,
+ * 1 byte of flags and the json serialized Triplet. Responses carry the same request id, so a client can have
+ * many requests in flight on one connection.
+ * If the first byte sent on the connection is BinaryCodec#HANDSHAKE, the body of the frames is encoded with the
+ * binary codec instead of json, for the whole life of the connection.
+ */
 public class BufferWrapper {
+
+    //upper bound for a single request, bigger frames are considered malformed
+    static final int MAX_FRAME_SIZE = 64 * 1024;
+    //request id and flags
+    static final int FRAME_HEADER_SIZE = Integer.BYTES + Byte.BYTES;
+    //flag asking to execute the request after the previous ordered ones of the same connection
+    public static final byte ORDERED = 0x01;
+
     private ByteBuffer buffer;
     private final int id;
+    private final Reactor reactor;
+    private SelectionKey key;
+    //codec chosen by the client with the first byte, null until it is received
+    private Boolean binary = null;
+
+    //responses ready to be sent as header and body buffers, filled by the workers and drained by the selector thread
+    private final Queue<ByteBuffer[]> outbound = new ConcurrentLinkedQueue<>();
+    //buffers passed to a single gathering write
+    private final ByteBuffer[] gather = new ByteBuffer[16];
+    //time of the last read or write, used to close idle connections. Only accessed by the selector thread
+    private long lastActivity = System.currentTimeMillis();
+    //tokens used on this connection, their sessions end when the connection is closed for inactivity
+    private final Set<UUID> tokens = new HashSet<>();
+    //requests of this connection submitted and not answered yet
+    private final AtomicInteger inFlight = new AtomicInteger();
+    //completion of the last ordered request, only accessed by the selector thread
+    private CompletableFuture<Void> orderedTail = CompletableFuture.completedFuture(null);
+    //set by a logout, no more requests are read
+    private boolean closing = false;
+    //set once the logout is done, the connection is closed when the queued responses are sent
+    private boolean closeWhenSent = false;
+    //logout waiting for the requests still executing, only accessed by the selector thread
+    private Runnable pendingLogout = null;
 
-    public BufferWrapper(int id, int size){
+    public BufferWrapper(int id, int size, Reactor reactor){
         this.id = id;
+        this.reactor = reactor;
         buffer = ByteBuffer.allocate(size);
     }
 
@@ -15,13 +77,278 @@ public class BufferWrapper {
         return buffer;
     }
 
-    public ByteBuffer newBuffer(int size) {
-        this.buffer = ByteBuffer.allocate(size);
-        return getBuffer();
+    /**
+     * Read everything available on the channel, keeping what was left from the previous reads.
+     *
+     * @param channel channel to read from
+     * @return number of bytes read, -1 if the client closed the connection
+     * @throws IOException if an I/O error occurs
+     */
+    public int read(SocketChannel channel) throws IOException {
+        int total = 0;
+        int bytesRead = 0;
+        do {
+            if (!buffer.hasRemaining()) {
+                //stop when the buffer could already hold a whole frame, the rest will be read at the next wakeup
+                if (buffer.capacity() >= Integer.BYTES + MAX_FRAME_SIZE) break;
+                grow(Math.min(buffer.capacity() * 2, Integer.BYTES + MAX_FRAME_SIZE));
+            }
+            bytesRead = channel.read(buffer);
+            if (bytesRead > 0) total += bytesRead;
+        } while (bytesRead > 0);
+        return bytesRead < 0 && total == 0 ? -1 : total;
+    }
+
+    /**
+     * Decode the next complete frame in the buffer, partial frames are kept for the next call.
+     *
+     * @param mapper mapper used to deserialize the request
+     * @return the decoded request, or null if a whole frame is not available yet
+     * @throws IOException if the frame is malformed
+     */
+    public Request nextRequest(ObjectMapper mapper) throws IOException {
+        buffer.flip();
+        try {
+            //the first byte tells which codec the client uses
+            if (binary == null) {
+                if (!buffer.hasRemaining()) return null;
+                binary = buffer.get(buffer.position()) == BinaryCodec.HANDSHAKE;
+                if (binary) buffer.get();
+            }
+            if (buffer.remaining() < Integer.BYTES) return null;
+
+            int length = buffer.getInt(buffer.position());
+            if (length <= FRAME_HEADER_SIZE || length > MAX_FRAME_SIZE)
+                throw new IOException("Invalid frame length: " + length);
+
+            if (buffer.remaining() < Integer.BYTES + length) {
+                //make room for the rest of the frame
+                if (buffer.capacity() < Integer.BYTES + length) {
+                    buffer.compact();
+                    grow(Integer.BYTES + length);
+                    buffer.flip();
+                }
+                return null;
+            }
+
+            buffer.getInt();
+            int requestId = buffer.getInt();
+            byte flags = buffer.get();
+            int start = buffer.position();
+            int payloadLength = length - FRAME_HEADER_SIZE;
+            buffer.position(start + payloadLength);
+
+            Triplet triplet;
+            if (binary) {
+                try {
+                    triplet = BinaryCodec.decodeRequest(buffer.slice(start, payloadLength));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e);
+                }
+            } else {
+                triplet = mapper.readValue(buffer.array(), buffer.arrayOffset() + start, payloadLength, Triplet.class);
+            }
+            return new Request(requestId, (flags & ORDERED) != 0, triplet);
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    //replace the buffer with a bigger one, keeping the content. Buffer must be in write mode
+    private void grow(int size) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, buffer.capacity()));
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+    }
+
+    /**
+     * Queue an encoded response, to be sent when the channel is writable.
+     *
+     * @param response header and body buffers, ready to be read. They are given back to the pool once written
+     */
+    public void enqueue(ByteBuffer[] response) {
+        outbound.add(response);
+    }
+
+    /**
+     * Write as much of the queued responses as the channel accepts, with a single gathering write.
+     * Partially written responses stay queued and are resumed at the next writable event.
+     *
+     * @param channel channel to write to
+     * @return true if every queued response has been sent
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean write(SocketChannel channel) throws IOException {
+        while (!outbound.isEmpty()) {
+            //collect the pending buffers of the queued responses, in order
+            int count = 0;
+            for (Iterator<ByteBuffer[]> it = outbound.iterator(); it.hasNext() && count < gather.length; ) {
+                for (ByteBuffer part : it.next()) {
+                    if (count == gather.length) break;
+                    if (part.hasRemaining()) gather[count++] = part;
+                }
+            }
+            if (count > 0) channel.write(gather, 0, count);
+            boolean drained = count == 0 || !gather[count - 1].hasRemaining();
+            Arrays.fill(gather, 0, count, null);
+
+            //give back the buffers of the responses completely sent
+            ByteBuffer[] head;
+            while ((head = outbound.peek()) != null && isSent(head)) {
+                outbound.poll();
+                for (ByteBuffer part : head) bufferPool.release(part);
+            }
+            //socket buffer is full, wait for the next writable event
+            if (!drained) return false;
+        }
+        return true;
+    }
+
+    //every buffer must be checked, the last one can be an empty body
+    private static boolean isSent(ByteBuffer[] response) {
+        for (ByteBuffer part : response) {
+            if (part.hasRemaining()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Give back to the pool the buffers of the responses not sent, called when the connection is closed.
+     */
+    public void releaseAll() {
+        ByteBuffer[] response;
+        while ((response = outbound.poll()) != null) {
+            for (ByteBuffer part : response) bufferPool.release(part);
+        }
+    }
+
+    /**
+     * Chain a task after the previous ordered requests of this connection. Must be called by the selector thread.
+     *
+     * @param task task executing the request and queueing its response
+     * @param executor executor running the task
+     */
+    public void executeOrdered(Runnable task, Executor executor) {
+        orderedTail = orderedTail.thenRunAsync(task, executor);
+    }
+
+    /**
+     * @return true if every ordered request of this connection has completed
+     */
+    public boolean orderedIdle() {
+        return orderedTail.isDone();
+    }
+
+    public boolean isClosing() {
+        return closing;
+    }
+
+    public void setClosing() {
+        closing = true;
+    }
+
+    public boolean closeWhenSent() {
+        return closeWhenSent;
+    }
+
+    public void setCloseWhenSent() {
+        closing = true;
+        closeWhenSent = true;
+    }
+
+    /**
+     * @param logout logout to run once no request of this connection is executing
+     */
+    public void setPendingLogout(Runnable logout) {
+        pendingLogout = logout;
+    }
+
+    /**
+     * @return the logout waiting for the requests in flight, null if there is none. It is removed from the connection
+     */
+    public Runnable takePendingLogout() {
+        Runnable logout = pendingLogout;
+        pendingLogout = null;
+        return logout;
+    }
+
+    public boolean hasPendingWrites() {
+        return !outbound.isEmpty();
+    }
+
+    public long lastActivity() {
+        return lastActivity;
+    }
+
+    public void touch(long now) {
+        lastActivity = now;
+    }
+
+    /**
+     * @param token token of a valid session used on this connection, null tokens are ignored
+     */
+    public void addToken(UUID token) {
+        if (token != null) tokens.add(token);
+    }
+
+    /**
+     * @param token token to look for, can be null
+     * @return true if the token has already been used on this connection
+     */
+    public boolean hasToken(UUID token) {
+        return tokens.contains(token);
+    }
+
+    public Set<UUID> getTokens() {
+        return tokens;
+    }
+
+    public boolean isClosed() {
+        return key == null || !key.isValid();
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    void requestCompleted() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return true if the client chose the binary codec
+     */
+    public boolean isBinary() {
+        return Boolean.TRUE.equals(binary);
+    }
+
+    public Reactor getReactor() {
+        return reactor;
+    }
+
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
     }
 
     public int getId() {
         return id;
     }
 
+    /**
+     * @param id id chosen by the client, sent back with the response
+     * @param ordered true if the request must be executed after the previous ordered ones
+     * @param triplet the user input
+     */
+    public record Request(int id, boolean ordered, Triplet triplet) {
+    }
+
 }
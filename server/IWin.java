@@ -18,9 +18,9 @@ public interface IWin extends Callable<String> {
      * use: list users
      *
      * @param username of the requesting user
-     * @return list of users with at least one common tag with the user
+     * @param out      writer of the response, receives list of users with at least one common tag with the user, those with more common tags first
      */
-    String listUsers(String username);
+    void listUsers(String username, ResponseWriter out);
 
     /**
      * use: list following
@@ -52,9 +52,19 @@ public interface IWin extends Callable<String> {
      * use: blog
      *
      * @param username of the requesting user
-     * @return list of all the post of the user, formatted
+     * @param out      writer of the response, receives list of all the post of the user, formatted
      */
-    String viewBlog(String username);
+    void viewBlog(String username, ResponseWriter out);
+
+    /**
+     * use: blog more
+     *
+     * @param username of the requesting user
+     * @param cursor   id of the last post received, 0 for the first page
+     * @param size     maximum number of posts in the page
+     * @param out      writer of the response, receives page of the posts of the user ordered by id, followed by the next cursor if more posts are left
+     */
+    void viewBlog(String username, int cursor, int size, ResponseWriter out);
 
     /**
      * use: post <title> <content>
@@ -70,17 +80,35 @@ public interface IWin extends Callable<String> {
      * use: show feed
      *
      * @param username id of the user requesting feed
-     * @return list of post of the followed users
+     * @param out      writer of the response, receives list of post of the followed users
+     */
+    void showFeed(String username, ResponseWriter out);
+
+    /**
+     * use: show feed more
+     *
+     * @param username id of the user requesting feed
+     * @param cursor   id of the last post received, 0 for the first page
+     * @param size     maximum number of posts in the page
+     * @param out      writer of the response, receives page of the feed ordered by id, followed by the next cursor if more posts are left
      */
-    String showFeed(String username);
+    void showFeed(String username, int cursor, int size, ResponseWriter out);
 
     /**
      * use: show post <id>
      *
      * @param idPost id of the post to show
-     * @return formatted post or error message
+     * @param out      writer of the response, receives formatted post or error message
      */
-    String showPost(int idPost);
+    void showPost(int idPost, ResponseWriter out);
+
+    /**
+     * use: search <terms>
+     *
+     * @param terms    words to search in the title and content of the posts
+     * @param out      writer of the response, receives list of the best matching posts, best first
+     */
+    void searchPosts(String terms, ResponseWriter out);
 
     /**
      * use: delete <id>
@@ -124,9 +152,19 @@ public interface IWin extends Callable<String> {
      * use: wallet
      *
      * @param username requesting user
-     * @return how many wincoins the user have
+     * @param out      writer of the response, receives how many wincoins the user have
+     */
+    void getWallet(String username, ResponseWriter out);
+
+    /**
+     * use: wallet more
+     *
+     * @param username requesting user
+     * @param cursor   timestamp of the last transaction received, 0 for the first page
+     * @param size     maximum number of transactions in the page
+     * @param out      writer of the response, receives page of the transactions, followed by the next cursor if more transactions are left
      */
-    String getWallet(String username);
+    void getWallet(String username, long cursor, int size, ResponseWriter out);
 
     /**
      * use: wallet btc
@@ -6,8 +6,11 @@ import common.Triplet;
 import common.ServerProxy;
 import server.data.Comment;
 import server.data.Post;
+import server.data.PostStore;
 import server.data.TextValidator;
 import server.data.User;
+import server.data.UserIds;
+import server.data.UserSet;
 
 import java.io.IOException;
 import java.net.URI;
@@ -25,14 +28,27 @@ import static server.data.TextValidator.*;
 
 public class IWinImpl implements IWin {
 
-    //Lookup map to get the username from the userToken
-    public static final Map<UUID, String> userIdLookup = new ConcurrentHashMap<>();
     //Map that index Users with their usename
     public static final Map<String, User> userMap = new ConcurrentHashMap<>();
-    //map of all the posts, indexed by their postId
-    public static final Map<Integer, Post> postLookup = new ConcurrentHashMap<>();
+    //all the posts, indexed by their postId
+    public static final PostStore postLookup = new PostStore();
+    //reverse of User#followedUsers, maps each username to the usernames of their followers
+    public static final Map<String, UserSet> followersIndex = new ConcurrentHashMap<>();
+    //maps each post id to the usernames of the users with the post in their blog, the author and the rewinners
+    public static final Map<Integer, UserSet> postHolders = new ConcurrentHashMap<>();
+    //maps each tag to the usernames of the users with that tag, tags never change after the registration
+    public static final Map<String, UserSet> tagIndex = new ConcurrentHashMap<>();
     final Triplet input;
     final ServerProxy proxy;
+    //set when the request is a login, to let binary clients receive it without json
+    private Triplet loginResult = null;
+    //set when the request has a missing or unknown token
+    private boolean authError = false;
+
+    //response to requests with a missing or unknown token
+    static final String AUTH_ERROR = "AuthError";
+    //shared mapper to serialize the login responses
+    private static final ObjectMapper mapper = new ObjectMapper();
 
     public IWinImpl(Triplet tri, ServerProxy proxy) {
         input = tri;
@@ -48,50 +64,102 @@ public class IWinImpl implements IWin {
      */
     @Override
     public String login(String username, String password) {
-        ObjectMapper mapper = new ObjectMapper();
         String result = "";
         try {
-            if (userMap.containsKey(username)) {
-                UUID id = UUID.randomUUID();
-                User loginAttempt = userMap.get(username);
+            User loginAttempt = userMap.get(username);
+            if (loginAttempt != null) {
                 if (loginAttempt.password().equals(password)) {
                     logger.add("User " + username + " logged in.");
-                    result = mapper.writeValueAsString(new Triplet(config.MulticastAddress(), config.UDPPort(), id));
-                    userIdLookup.put(id, username);
+                    loginResult = new Triplet(config.MulticastAddress(), config.UDPPort(), sessions.create(loginAttempt));
                 } else
-                    result = mapper.writeValueAsString(new Triplet("Wrong password.", -1, null));
+                    loginResult = new Triplet("Wrong password.", -1, null);
             } else {
-                result = mapper.writeValueAsString(new Triplet("Wrong username or not registered.", -1, null));
+                loginResult = new Triplet("Wrong username or not registered.", -1, null);
             }
+            result = mapper.writeValueAsString(loginResult);
         } catch (JsonProcessingException e) {
             e.printStackTrace();
         }
         return result;
     }
 
+    /**
+     * @return result of the login made by this request, null if the request was not a login
+     */
+    public Triplet loginResult() {
+        return loginResult;
+    }
+
     /**
      * use: list users
+     *
+     * @param username of the requesting user
+     * @param out      writer of the response, receives the LIST_USERS_LIMIT users with most tags in common with the user
      */
     @Override
-    public String listUsers(String username) {
-        String list = (String.format("User %12c Tags \n", '|'));
+    public void listUsers(String username, ResponseWriter out) {
         User u = userMap.get(username);
-        for (User s : userMap.values()) {
-            if (!u.username().equals(s.username()) && u.tags().stream().anyMatch(i -> s.tags().contains(i)))
-                list = list.concat(String.format("* %s %10c %s\n", s.username(), '|', s.tags()));
+
+        //count the common tags of the users found in the index, by id, sized to the candidates and not to all the users
+        int self = UserIds.find(username);
+        List<int[]> candidates = new ArrayList<>();
+        int total = 0;
+        for (String tag : u.tags()) {
+            UserSet others = tagIndex.get(tag);
+            if (others == null) continue;
+            int[] ids = others.ids();
+            candidates.add(ids);
+            total += ids.length;
+        }
+        Map<Integer, Integer> commonTags = new HashMap<>(Math.max(16, total * 4 / 3 + 1));
+        for (int[] ids : candidates) {
+            for (int other : ids) {
+                if (other != self) commonTags.merge(other, 1, Integer::sum);
+            }
+        }
+
+        //keep the best matches, the head of the queue is the worst of them
+        Comparator<Integer> byMatches = Comparator.<Integer>comparingInt(commonTags::get)
+                .thenComparing(UserIds::nameOf, Comparator.reverseOrder());
+        PriorityQueue<Integer> best = new PriorityQueue<>(byMatches);
+        for (int id : commonTags.keySet()) {
+            best.add(id);
+            if (best.size() > LIST_USERS_LIMIT) best.poll();
+        }
+        List<Integer> sorted = new ArrayList<>(best);
+        sorted.sort(byMatches.reversed());
+
+        out.append(USERS_HEADER);
+        for (int id : sorted) {
+            User s = userMap.get(UserIds.nameOf(id));
+            //a user being registered can be in the index before the map
+            if (s == null) continue;
+            out.append("* ").append(s.username()).append(USERS_SEPARATOR).append(s.tags().toString()).append('\n');
+        }
+    }
+
+    /**
+     * Add a new or restored user to the tag index.
+     *
+     * @param user user to index
+     */
+    public static void indexTags(User user) {
+        for (String tag : user.tags()) {
+            tagIndex.computeIfAbsent(tag, k -> new UserSet()).add(user.username());
         }
-        return list;
     }
 
     public static List<String> getUserFollowers(String userId) {
         String username = userMap.get(userId).username();
-        List<String> followers = new ArrayList<>();
-        for (User user : userMap.values()) {
-            if (user.followedUsers().contains(username)) {
-                followers.add(user.username());
-            }
-        }
-        return followers;
+        return new ArrayList<>(followersOf(username));
+    }
+
+    /**
+     * @param username followed user
+     * @return live set of the followers of the user, kept updated by User#followUser and User#unfollowUser
+     */
+    public static UserSet followersOf(String username) {
+        return followersIndex.computeIfAbsent(username, k -> new UserSet());
     }
 
 
@@ -113,7 +181,7 @@ public class IWinImpl implements IWin {
         User newFollower = userMap.getOrDefault(idFollower, null);
         User toFollow = userMap.getOrDefault(idToFollow, null);
         if (newFollower != null && toFollow != null && !idToFollow.equals(idFollower)) {
-            newFollower.followUser(idToFollow);
+            Timelines.follow(newFollower, toFollow);
             try {
                 proxy.tryNotifyFollowersUpdate(idToFollow);
             } catch (RemoteException e) {
@@ -137,7 +205,7 @@ public class IWinImpl implements IWin {
         User oldFollower = userMap.getOrDefault(follower, null);
         User toUnfollow = userMap.getOrDefault(userToUnfollow, null);
         if (oldFollower != null && toUnfollow != null && !userToUnfollow.equals(follower)) {
-            oldFollower.unfollowUser(userToUnfollow);
+            Timelines.unfollow(oldFollower, toUnfollow);
             try {
                 proxy.tryNotifyFollowersUpdate(userToUnfollow);
             } catch (RemoteException e) {
@@ -153,22 +221,49 @@ public class IWinImpl implements IWin {
      * use: blog
      *
      * @param username id of the requesting user
-     * @return list of all the post of the user, formatted
+     * @param out      writer of the response, receives all the posts of the user, formatted
      */
     @Override
-    public String viewBlog(String username) {
+    public void viewBlog(String username, ResponseWriter out) {
         User currentUser = userMap.getOrDefault(username, null);
-        String blog = "Your blog:\n";
+        out.append("Your blog:\n");
         if (currentUser != null) {
             for (Post post : currentUser.blog()) {
-                if (post.author().equals(username)) {
-                    blog = blog.concat(post.format());
-                } else {
-                    blog = blog.concat(post.formatR());
-                }
+                writePost(post, username, out);
             }
         }
-        return blog;
+    }
+
+    /**
+     * use: blog more
+     *
+     * @param username id of the requesting user
+     * @param cursor   id of the last post received, 0 for the first page
+     * @param size     maximum number of posts in the page
+     * @param out      writer of the response, receives the page of the posts of the user ordered by id,
+     *                 followed by the next cursor if more posts are left
+     */
+    @Override
+    public void viewBlog(String username, int cursor, int size, ResponseWriter out) {
+        User currentUser = userMap.getOrDefault(username, null);
+        out.append("Your blog:\n");
+        if (currentUser != null) {
+            //posts are compared by id only
+            Iterator<Post> posts = currentUser.blog().tailSet(new Post(null, cursor, null, null), false).iterator();
+            int last = cursor;
+            for (int i = 0; i < size && posts.hasNext(); i++) {
+                Post post = posts.next();
+                writePost(post, username, out);
+                last = post.postId();
+            }
+            if (posts.hasNext()) writeNextCursor(last, out);
+        }
+    }
+
+    //rewinned posts show their author, the rendering of the post is the cached one
+    private static void writePost(Post post, String blogOwner, ResponseWriter out) {
+        if (!post.author().equals(blogOwner)) out.append("Autore: ").append(post.author()).append('\n');
+        out.write(post.encoded());
     }
 
     /**
@@ -183,44 +278,55 @@ public class IWinImpl implements IWin {
     public String createPost(String author, String title, String content) {
         User user = userMap.getOrDefault(author, null);
         if (user != null && TextValidator.validatePostTitle(title) && TextValidator.validatePostContent(content)) {
-            Post newPost = new Post(user.username(), getNewPostId(), title, content);
-            user.blog().add(newPost);
-            postLookup.put(newPost.postId(), newPost);
+            Post newPost = new Post(user.username(), postLookup.nextId(), title, content);
+            postHolders.put(newPost.postId(), new UserSet());
+            postLookup.put(newPost);
+            SearchIndex.add(newPost);
+            Timelines.addToBlog(user, newPost);
             return "Success. New post made - ID: " + newPost.postId();
         }
         return "Create post failed, title or content not valid.";
     }
 
-    //Counter of last postId used, it's updated to the maximum postId when the data is restored.
-    static int postCounter = 0;
-
-    private synchronized static int getNewPostId() {
-        postCounter++;
-        return postCounter;
-    }
-
     /**
      * use: show feed
      *
      * @param username of the requesting user
-     * @return formatted feed, listing <post id | post author | post title>
+     * @param out      writer of the response, receives the feed, listing <post id | post author | post title>
      */
     @Override
-    public String showFeed(String username) {
-        List<Post> feedList = new ArrayList<>();
-
-        for (User user : listFollowing(username).stream().map(userMap::get).toList()) {
-            feedList.addAll(user.blog());
+    public void showFeed(String username, ResponseWriter out) {
+        out.append(FEED_HEADER);
+        for (Iterator<Post> posts = Timelines.feedOf(userMap.get(username), 0); posts.hasNext(); ) {
+            writeFeedRow(posts.next(), out);
         }
-        feedList.sort(null);
-
-        String feed = String.format("Id %5c Author %5c Title\n", '|', '|');
+    }
 
-        for (Post post : feedList) {
-            feed = feed.concat(String.format("%s %5c %s %5c %s\n", post.postId(), '|', post.author(), '|', post.title()));
+    /**
+     * use: show feed more
+     *
+     * @param username id of the user requesting feed
+     * @param cursor   id of the last post received, 0 for the first page
+     * @param size     maximum number of posts in the page
+     * @param out      writer of the response, receives the page of the feed ordered by id,
+     *                 followed by the next cursor if more posts are left
+     */
+    @Override
+    public void showFeed(String username, int cursor, int size, ResponseWriter out) {
+        out.append(FEED_HEADER);
+
+        Iterator<Post> posts = Timelines.feedOf(userMap.get(username), cursor);
+        int last = cursor;
+        for (int i = 0; i < size && posts.hasNext(); i++) {
+            Post post = posts.next();
+            writeFeedRow(post, out);
+            last = post.postId();
         }
+        if (posts.hasNext()) writeNextCursor(last, out);
+    }
 
-        return feed;
+    private static void writeFeedRow(Post post, ResponseWriter out) {
+        out.append(post.postId()).append(FEED_SEPARATOR).append(post.author()).append(FEED_SEPARATOR).append(post.title()).append('\n');
     }
 
     /**
@@ -229,10 +335,13 @@ public class IWinImpl implements IWin {
      * @return true if the post is present in one of the blog of the users followed by user
      */
     public boolean isInFeed(int postId, String username){
-        for (User user : listFollowing(username).stream().map(userMap::get).toList()) {
-            for (Post p : user.blog()){
-                if (p.postId() == postId) return true;
-            }
+        UserSet holders = postHolders.get(postId);
+        int user = UserIds.find(username);
+        if (holders == null || user < 0) return false;
+        //few users hold the same post, check if the user follows any of them
+        for (int holder : holders.ids()) {
+            UserSet followers = followersIndex.get(UserIds.nameOf(holder));
+            if (followers != null && followers.containsId(user)) return true;
         }
         return false;
     }
@@ -242,14 +351,36 @@ public class IWinImpl implements IWin {
      * use: show post <id>
      *
      * @param idPost id of the post to show
-     * @return formatted post or error message
+     * @param out    writer of the response, receives the formatted post or an error message
      */
     @Override
-    public String showPost(int idPost) {
-        if (postLookup.containsKey(idPost)) {
-            return postLookup.get(idPost).format();
+    public void showPost(int idPost, ResponseWriter out) {
+        Post post = postLookup.get(idPost);
+        if (post != null) {
+            //fill the cache, so the next requests for the same post are answered by the reactors
+            out.write(post.encoded());
         } else {
-            return "Post does not exist";
+            out.append("Post does not exist");
+        }
+    }
+
+    /**
+     * use: search <terms>
+     *
+     * @param terms words to search in the title and content of the posts
+     * @param out   writer of the response, receives the SEARCH_LIMIT best matching posts, listing <post id | post author | post title>
+     */
+    @Override
+    public void searchPosts(String terms, ResponseWriter out) {
+        int[] found = SearchIndex.search(terms, SEARCH_LIMIT);
+        if (found.length == 0) {
+            out.append("No posts found\n");
+            return;
+        }
+        out.append(FEED_HEADER);
+        for (int postId : found) {
+            Post post = postLookup.get(postId);
+            if (post != null) writeFeedRow(post, out);
         }
     }
 
@@ -263,9 +394,14 @@ public class IWinImpl implements IWin {
     @Override
     public String deletePost(String username, int idPost) {
         User user = userMap.get(username);
-        if (postLookup.containsKey(idPost) && postLookup.get(idPost).author().equals(user.username())) {
-            Post toDelete = postLookup.remove(idPost);
-            user.blog().remove(toDelete);
+        Post toDelete = postLookup.get(idPost);
+        //only one of concurrent deletes removes the post
+        if (toDelete != null && toDelete.author().equals(user.username()) && postLookup.remove(idPost, toDelete)) {
+            //remove the post from the blogs of the author and of the rewinners
+            for (String holder : postHolders.remove(idPost)) {
+                Timelines.removeFromBlog(userMap.get(holder), toDelete);
+            }
+            SearchIndex.remove(toDelete);
             logger.add(toDelete.format() + "\n Deleted Successfully");
             return "Successfully removed";
         }
@@ -282,10 +418,10 @@ public class IWinImpl implements IWin {
     @Override
     public String rewinPost(String username, int idPost) {
 
-        if (postLookup.containsKey(idPost)) {
-            Post toRewin = postLookup.get(idPost);
+        Post toRewin = postLookup.get(idPost);
+        if (toRewin != null) {
             User user = userMap.get(username);
-            if (!user.username().equals(toRewin.author()) && user.blog().add(toRewin)) {
+            if (!user.username().equals(toRewin.author()) && Timelines.addToBlog(user, toRewin)) {
                 return "Post rewinned to user blog";
             } else {
                 return "Post already present in user blog";
@@ -303,7 +439,7 @@ public class IWinImpl implements IWin {
      */
     @Override
     public String ratePost(int idPost, String username, int rate) {
-        Post post = postLookup.getOrDefault(idPost, null);
+        Post post = postLookup.get(idPost);
         if (post != null && !post.author().equals(username) && isInFeed(idPost, username)) {
             if (post.rate(username, rate)) {
                 return "Success";
@@ -323,7 +459,7 @@ public class IWinImpl implements IWin {
      */
     @Override
     public String addComment(int postId, String content, String username) {
-        Post post = postLookup.getOrDefault(postId, null);
+        Post post = postLookup.get(postId);
         if (post != null && validateComment(content) && isInFeed(postId, username)) {
             Comment comment = new Comment(username, content, System.currentTimeMillis());
             post.comment(comment);
@@ -336,12 +472,54 @@ public class IWinImpl implements IWin {
      * use: wallet
      *
      * @param username requesting user
-     * @return how many wincoins the user have
+     * @param out      writer of the response, receives how many wincoins the user have and the transactions
      */
     @Override
-    public String getWallet(String username) {
+    public void getWallet(String username, ResponseWriter out) {
         User user = userMap.get(username);
-        return String.format("%.2f Wincoins.\n", user.totalWallet()).concat(user.wallet().toString());
+        out.append(String.format("%.2f Wincoins.\n", user.totalWallet()));
+        //same format of a list
+        out.append('[');
+        boolean first = true;
+        StringBuilder row = new StringBuilder(64);
+        for (User.Transaction transaction : user.wallet().transactions()) {
+            if (!first) out.append(", ");
+            row.setLength(0);
+            out.append(transaction.appendTo(row));
+            first = false;
+        }
+        out.append(']');
+    }
+
+    /**
+     * use: wallet more
+     *
+     * @param username requesting user
+     * @param cursor   timestamp of the last transaction received, 0 for the first page
+     * @param size     maximum number of transactions in the page
+     * @param out      writer of the response, receives the page of the transactions,
+     *                 followed by the next cursor if more transactions are left
+     */
+    @Override
+    public void getWallet(String username, long cursor, int size, ResponseWriter out) {
+        User user = userMap.get(username);
+
+        if (cursor == 0) out.append(String.format("%.2f Wincoins.\n", user.totalWallet()));
+        Iterator<User.Transaction> transactions = user.wallet().transactionsAfter(cursor).iterator();
+        long last = cursor;
+        StringBuilder row = new StringBuilder(64);
+        for (int i = 0; i < size && transactions.hasNext(); i++) {
+            User.Transaction transaction = transactions.next();
+            row.setLength(0);
+            out.append(transaction.appendTo(row));
+            last = transaction.timestamp();
+        }
+        if (transactions.hasNext()) writeNextCursor(last, out);
+    }
+
+    //last line of a page, read by the client to ask for the next one
+    private static void writeNextCursor(long cursor, ResponseWriter out) {
+        out.append("Next cursor: ").append(Long.toString(cursor)).append('\n');
     }
 
     /**
@@ -376,6 +554,37 @@ public class IWinImpl implements IWin {
         return String.format("%.2f Bitcoins\n", bitcoins);
     }
 
+    //headers and column separators of the listings, formatted once
+    private static final String USERS_HEADER = String.format("User %12c Tags \n", '|');
+    private static final String USERS_SEPARATOR = String.format(" %10c ", '|');
+    private static final String FEED_HEADER = String.format("Id %5c Author %5c Title\n", '|', '|');
+    private static final String FEED_SEPARATOR = String.format(" %5c ", '|');
+
+    //most users returned by list users
+    static final int LIST_USERS_LIMIT = 50;
+
+    //most posts returned by search
+    static final int SEARCH_LIMIT = 20;
+
+    //largest page returned by the paginated operations
+    static final int MAX_PAGE_SIZE = 100;
+
+    /**
+     * @param args arguments of a paginated request, "cursor size"
+     * @return the cursor and the page size, capped to MAX_PAGE_SIZE, or null if the arguments are not valid
+     */
+    private static long[] parsePage(String args) {
+        String[] split = args.trim().split(" +");
+        try {
+            long cursor = Long.parseLong(split[0]);
+            int size = split.length > 1 ? Integer.parseInt(split[1]) : MAX_PAGE_SIZE;
+            if (cursor < 0 || size < 1) return null;
+            return new long[]{cursor, Math.min(size, MAX_PAGE_SIZE)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     //pattern to check text between "
     static final Pattern pattern = Pattern.compile("\"(.*?)\"");
 
@@ -386,21 +595,48 @@ public class IWinImpl implements IWin {
      */
     @Override
     public String call() {
+        StringResponseWriter out = new StringResponseWriter();
+        execute(out);
+        return out.toString();
+    }
+
+    /**
+     * Execute the operation corresponding to the opcode given, rendering its result into the writer.
+     *
+     * @param out writer of the result of the operation or of the error message
+     */
+    public void execute(ResponseWriter out) {
+        String result = dispatch(out);
+        if (result != null) out.append(result);
+    }
+
+    /**
+     * @return true if the request was rejected because of a missing or unknown token
+     */
+    public boolean authError() {
+        return authError;
+    }
+
+    //the listings are rendered into the writer and return null, the other operations return their message
+    private String dispatch(ResponseWriter out) {
         //switch on opcode from the input triplet
 
-        if (input.token() == null || !userIdLookup.containsKey(input.token())) {
+        User user = sessions.resolve(input.token());
+        if (user == null) {
             if (this.input.op() == 100){
                 String[] tokens = input.args().split(" ");
                 return login(tokens[0], tokens[1]);
             }
-            return "AuthError";
+            authError = true;
+            return AUTH_ERROR;
         }
 
-        String username = userIdLookup.get(input.token());
+        String username = user.username();
 
         switch (this.input.op()) {
             case 1 -> {
-                return listUsers(username);
+                listUsers(username, out);
+                return null;
             }
             case 3 ->{
                 Set<String> followedUsers = listFollowing(username);
@@ -415,7 +651,8 @@ public class IWinImpl implements IWin {
                 return unfollowUser(input.args(), username);
             }
             case 6 -> {
-                return viewBlog(username);
+                viewBlog(username, out);
+                return null;
             }
             case 10 -> {
                 List<String> matches = pattern.matcher(input.args())
@@ -461,20 +698,46 @@ public class IWinImpl implements IWin {
                     return "Arguments error, not a number.";
                 }
             }
+            case 7 -> {
+                long[] page = parsePage(input.args());
+                if (page == null) return "Arguments error, not a number.";
+                viewBlog(username, (int) Math.min(page[0], Integer.MAX_VALUE), (int) page[1], out);
+                return null;
+            }
             case 20 -> {
-                return showFeed(username);
+                showFeed(username, out);
+                return null;
+            }
+            case 22 -> {
+                long[] page = parsePage(input.args());
+                if (page == null) return "Arguments error, not a number.";
+                showFeed(username, (int) Math.min(page[0], Integer.MAX_VALUE), (int) page[1], out);
+                return null;
             }
             case 21 -> {
                 if (isNumeric(input.args())) {
-                    return showPost(Integer.parseInt(input.args()));
+                    showPost(Integer.parseInt(input.args()), out);
+                    return null;
                 }else return "Arguments error, not a number.";
             }
             case 30 -> {
-                return getWallet(username);
+                getWallet(username, out);
+                return null;
             }
             case 31 -> {
                 return getWalletInBitcoin(username);
             }
+            case 32 -> {
+                long[] page = parsePage(input.args());
+                if (page == null) return "Arguments error, not a number.";
+                getWallet(username, page[0], (int) page[1], out);
+                return null;
+            }
+            case 40 -> {
+                if (input.args().isBlank()) return "Arguments error, no terms to search.";
+                searchPosts(input.args(), out);
+                return null;
+            }
         }
         return "No operation found for this request";
     }
@@ -5,13 +5,17 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import server.data.Post;
 import server.data.User;
+import server.data.UserSet;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 public class PersistentDataManager {
-    static final ServerConfig defaults = new ServerConfig("localhost", "239.255.32.32", 1080, 44444, "localhost", 1846,  0.75F,100L, 2000L);
+    static final ServerConfig defaults = new ServerConfig("localhost", "239.255.32.32", 1080, 44444, "localhost", 1846,  0.75F,100L, 2000L,
+            Runtime.getRuntime().availableProcessors(), "platform", 32, 1000,
+            2000, 32, 5000, 1800L, 10000, 1000, 3600L, 8);
 
     public static boolean initialize() {
 
@@ -26,7 +30,7 @@ public class PersistentDataManager {
                 om.writeValue(configs, defaults);
                 ServerMain.config = defaults;
             } else {
-                ServerMain.config = om.readValue(configs, ServerConfig.class);
+                ServerMain.config = om.readValue(configs, ServerConfig.class).withDefaults(defaults);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -37,6 +41,31 @@ public class PersistentDataManager {
             System.out.println("Error while loading configs, AuthorReward needs to be a decimal between 0 and 1. Current value: " + ServerMain.config.AuthorReward());
             return false;
         }
+        if (ServerMain.config.ReactorThreads() < 1){
+            System.out.println("Error while loading configs, ReactorThreads needs to be at least 1. Current value: " + ServerMain.config.ReactorThreads());
+            return false;
+        }
+        if (ServerMain.config.MaxInFlightPerConnection() < 1 || ServerMain.config.MaxInFlight() < 1
+                || ServerMain.config.ShedThreshold() < ServerMain.config.MaxInFlight()){
+            System.out.println("Error while loading configs, MaxInFlight and MaxInFlightPerConnection need to be at least 1, ShedThreshold at least MaxInFlight.");
+            return false;
+        }
+        if (ServerMain.config.FanoutThreshold() < 0){
+            System.out.println("Error while loading configs, FanoutThreshold can't be negative.");
+            return false;
+        }
+        if (ServerMain.config.IdleTimeout() < 1 || ServerMain.config.MaxConnections() < 1){
+            System.out.println("Error while loading configs, IdleTimeout and MaxConnections need to be at least 1.");
+            return false;
+        }
+        if (ServerMain.config.SessionTimeout() < 1 || ServerMain.config.MaxSessionsPerUser() < 1){
+            System.out.println("Error while loading configs, SessionTimeout and MaxSessionsPerUser need to be at least 1.");
+            return false;
+        }
+        if (ServerMain.config.WorkerThreads() < 1 || ServerMain.config.MaxConcurrentRequests() < 1){
+            System.out.println("Error while loading configs, WorkerThreads and MaxConcurrentRequests need to be at least 1.");
+            return false;
+        }
 
         JsonFactory factory = new JsonFactory();
 
@@ -60,11 +89,11 @@ public class PersistentDataManager {
                             restoreUser = parser.readValueAs(User.class);
 
                             IWinImpl.userMap.put(restoreUser.username(), restoreUser);
-                            for (Post restorePost : restoreUser.blogUnchecked()) {
+                            IWinImpl.indexTags(restoreUser);
+                            for (Post restorePost : restoreUser.blog()) {
                                 //don't add rewinned posts to lookup
                                 if (restoreUser.username().equals(restorePost.author())) {
-                                    IWinImpl.postLookup.put(restorePost.postId(), restorePost);
-                                    IWinImpl.postCounter = Math.max(IWinImpl.postCounter, restorePost.postId());
+                                    IWinImpl.postLookup.put(restorePost);
                                 }
                             }
 
@@ -78,6 +107,29 @@ public class PersistentDataManager {
             }
         }
 
+        //rewinned posts are saved as copies, replace them with the restored posts and drop those deleted
+        for (User user : IWinImpl.userMap.values()) {
+            List<Post> blog = new ArrayList<>();
+            for (Post post : user.blog()) {
+                Post restored = IWinImpl.postLookup.get(post.postId());
+                if (restored != null) {
+                    blog.add(restored);
+                    IWinImpl.postHolders.computeIfAbsent(post.postId(), k -> new UserSet()).add(user.username());
+                }
+            }
+            user.blog().clear();
+            user.blog().addAll(blog);
+        }
+
+        //rebuild the followers index from the restored users
+        for (User user : IWinImpl.userMap.values()) {
+            for (String followed : user.followedUsers()) {
+                IWinImpl.followersOf(followed).add(user.username());
+            }
+        }
+        Timelines.rebuild();
+        SearchIndex.build(IWinImpl.postLookup);
+
         //retrieves last time the rewards check was made, if a log exists
         File previousLog = new File(savedDataPath + File.separatorChar + "latest.json");
 
@@ -96,6 +148,10 @@ public class PersistentDataManager {
             }
         }
 
+        //count the ratings to reward at the next check
+        for (Post post : IWinImpl.postLookup) {
+            post.ratings().resetLastCheck(ServerMain.lastCheck);
+        }
 
         return true;
     }
@@ -0,0 +1,349 @@
+package server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import common.ServerProxy;
+import common.Triplet;
+import server.data.Post;
+import server.data.TextValidator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static server.ServerMain.*;
+
+/**
+ * Selector thread serving a subset of the connections. The acceptor hands the new channels over,
+ * from then on reads, writes and request dispatching for them happen here.
+ */
+public class Reactor implements Runnable {
+
+    private final Selector selector;
+    private final ServerProxy proxy;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    //channels accepted but not registered with the selector yet
+    private final Queue<SocketChannel> newConnections = new ConcurrentLinkedQueue<>();
+    //connections with a response queued, waiting for the selector to listen for writes
+    private final Queue<BufferWrapper> pendingWrites = new ConcurrentLinkedQueue<>();
+    //logouts waiting for the ordered requests before them, run by the selector thread
+    private final Queue<Runnable> pendingLogouts = new ConcurrentLinkedQueue<>();
+    //connections not read anymore because of too many requests in flight
+    private final Set<SelectionKey> paused = new HashSet<>();
+    //idle timeouts of the connections, advanced at every wakeup
+    private final TimingWheel idleConnections;
+    //number of open connections, used by the acceptor to pick the least loaded reactor
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    public Reactor(ServerProxy proxy) throws IOException {
+        this.selector = Selector.open();
+        this.proxy = proxy;
+        this.idleConnections = new TimingWheel(config.selectTimeout(), config.IdleTimeout() * 1000, System.currentTimeMillis());
+    }
+
+    /**
+     * Hand a new connection to this reactor, it will be registered at the next wakeup.
+     *
+     * @param client accepted channel
+     */
+    public void register(SocketChannel client) {
+        connections.incrementAndGet();
+        newConnections.add(client);
+        selector.wakeup();
+    }
+
+    /**
+     * Called by the workers once a response has been queued on the connection.
+     *
+     * @param wrapper connection with bytes to send
+     */
+    public void responseReady(BufferWrapper wrapper) {
+        pendingWrites.add(wrapper);
+        selector.wakeup();
+    }
+
+    public int connectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * Wake the selector up to resume the paused connections.
+     */
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+
+            try {
+                selector.select(config.selectTimeout());
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                break;
+            }
+
+            //register the connections handed over by the acceptor
+            SocketChannel accepted;
+            while ((accepted = newConnections.poll()) != null) {
+                try {
+                    accepted.configureBlocking(false);
+                    //prepare to read, wrap buffer with channelId
+                    BufferWrapper readBuffer = new BufferWrapper(getNextSelectorId(), 512, this);
+                    readBuffer.setKey(accepted.register(selector, SelectionKey.OP_READ, readBuffer));
+                    idleConnections.schedule(readBuffer);
+                } catch (IOException e) {
+                    connections.decrementAndGet();
+                    e.printStackTrace();
+                }
+            }
+
+            //listen for writes on the connections that got a response while waiting
+            BufferWrapper ready;
+            Runnable logout;
+            while ((ready = pendingWrites.poll()) != null) {
+                SelectionKey readyKey = ready.getKey();
+                if (readyKey.isValid()) {
+                    readyKey.interestOps(readyKey.interestOps() | SelectionKey.OP_WRITE);
+                    //the last response of the connection before its logout
+                    if (ready.inFlight() == 0 && (logout = ready.takePendingLogout()) != null) logout.run();
+                } else {
+                    //response of a request finished after the connection was closed
+                    ready.releaseAll();
+                }
+            }
+
+            //logouts whose previous ordered requests are done
+            while ((logout = pendingLogouts.poll()) != null) {
+                logout.run();
+            }
+
+            //close the connections without activity for longer than the timeout
+            long now = System.currentTimeMillis();
+            idleConnections.advance(now, this::closeIdle);
+
+            //resume reading from the connections under the limits again
+            for (SelectionKey key : new ArrayList<>(paused)) {
+                if (!key.isValid()) {
+                    paused.remove(key);
+                } else if (((BufferWrapper) key.attachment()).isClosing()) {
+                    paused.remove(key);
+                } else if (!admission.mustPause((BufferWrapper) key.attachment())) {
+                    paused.remove(key);
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    try {
+                        //requests already received are not signaled by the selector again
+                        processRequests(key);
+                    } catch (IOException e) {
+                        closeConnection(key);
+                    }
+                }
+            }
+
+            Set<SelectionKey> readyKeys = selector.selectedKeys();
+            Iterator<SelectionKey> iterator = readyKeys.iterator();
+
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                //closed for inactivity after being selected
+                if (!key.isValid()) continue;
+                try {
+                    ((BufferWrapper) key.attachment()).touch(now);
+                    //read requests and submit the tasks
+                    if (key.isReadable()) {
+                        handleRead(key);
+                    }
+                    //send the responses queued by the workers, stop listening for writes once drained
+                    if (key.isValid() && key.isWritable()) {
+                        BufferWrapper wrapper = ((BufferWrapper) key.attachment());
+                        if (wrapper.write((SocketChannel) key.channel())) {
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                            //the responses before a logout have been sent
+                            if (wrapper.closeWhenSent()) closeConnection(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    closeConnection(key);
+                }
+            }
+        }
+
+        //close every connection still open
+        for (SelectionKey key : selector.keys()) {
+            closeConnection(key);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handleRead(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        BufferWrapper wrapper = ((BufferWrapper) key.attachment());
+
+        //read what is available, partial frames stay in the wrapper until the next wakeup
+        if (wrapper.read(client) < 0) {
+            closeConnection(key);
+            System.out.println("Connection with client closed");
+            return;
+        }
+
+        processRequests(key);
+    }
+
+    /**
+     * Decode and dispatch the requests received, until the connection has too many requests in flight.
+     */
+    private void processRequests(SelectionKey key) throws IOException {
+        BufferWrapper wrapper = ((BufferWrapper) key.attachment());
+        //logged out, the requests after the logout are ignored
+        if (wrapper.isClosing()) return;
+
+        //decode every complete request received
+        while (true) {
+            //stop reading, the remaining requests wait in the buffer and in the socket
+            if (admission.mustPause(wrapper)) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                if (paused.add(key)) admission.connectionPaused();
+                return;
+            }
+
+            BufferWrapper.Request request = wrapper.nextRequest(mapper);
+            if (request == null) return;
+
+            Triplet triplet = request.triplet();
+            //only tokens of a session, made up ones would grow the set for the whole connection
+            if (!wrapper.hasToken(triplet.token()) && sessions.username(triplet.token()) != null) wrapper.addToken(triplet.token());
+            //special case for logout and shutdown
+            if (triplet.op() == 0) {
+                if (request.ordered() && !wrapper.orderedIdle()) {
+                    //stop reading and log out after the ordered requests received before
+                    wrapper.setClosing();
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    wrapper.executeOrdered(() -> {
+                        pendingLogouts.add(() -> logout(key, triplet));
+                        selector.wakeup();
+                    }, Runnable::run);
+                } else {
+                    logout(key, triplet);
+                }
+                return;
+            } else if ((!request.ordered() || wrapper.orderedIdle()) && tryServeCached(wrapper, request)) {
+                //ordered requests are answered from the cache only if they wouldn't overtake the previous ones
+                //show post answered with the cached rendering, nothing to execute
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else if (admission.mustShed()) {
+                //overloaded, answer without executing the request
+                admission.requestShed();
+                ByteBuffer[] busy = encodeResponse(request.id(), encodeBusy(wrapper, triplet.op()));
+                if (request.ordered() && !wrapper.orderedIdle()) {
+                    //an ordered request is answered after the previous ones, like a request executed
+                    wrapper.executeOrdered(() -> {
+                        wrapper.enqueue(busy);
+                        responseReady(wrapper);
+                    }, Runnable::run);
+                } else {
+                    wrapper.enqueue(busy);
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            } else {
+                //execute user operation
+                String message = triplet.op() + " | args: " + triplet.args() + " da: " + triplet.token() + '\n';
+                logger.add("Executing : " + message);
+
+                checkAndExecute(wrapper, request, proxy);
+            }
+        }
+    }
+
+    /**
+     * End the session of a logout request and close the connection, after the requests still executing
+     * and after sending their responses. Starts the server shutdown if requested.
+     */
+    private void logout(SelectionKey key, Triplet triplet) {
+        BufferWrapper wrapper = (BufferWrapper) key.attachment();
+        if (wrapper.inFlight() > 0 && key.isValid()) {
+            //run again by the selector thread when the last of them is answered
+            wrapper.setClosing();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            wrapper.setPendingLogout(() -> logout(key, triplet));
+            return;
+        }
+        sessions.end(triplet.token());
+        if (wrapper.hasPendingWrites() && key.isValid()) {
+            wrapper.setCloseWhenSent();
+            key.interestOps((key.interestOps() | SelectionKey.OP_WRITE) & ~SelectionKey.OP_READ);
+        } else {
+            closeConnection(key);
+        }
+        System.out.println("Connection with client closed");
+        if (triplet.args().equals("shutdown")) {
+            ServerMain.shutdown();
+        }
+    }
+
+    /**
+     * Answer a show post request directly from the reactor, if the rendering of the post is cached and up-to-date.
+     *
+     * @return true if the response has been queued
+     */
+    private boolean tryServeCached(BufferWrapper wrapper, BufferWrapper.Request request) {
+        Triplet triplet = request.triplet();
+        if (triplet.op() != 21 || sessions.resolve(triplet.token()) == null
+                || !TextValidator.isNumeric(triplet.args())) return false;
+
+        Post post;
+        try {
+            post = IWinImpl.postLookup.get(Integer.parseInt(triplet.args()));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        byte[] cached = post != null ? post.rendering().peek() : null;
+        if (cached == null) return false;
+
+        wrapper.enqueue(encodeResponse(request.id(), cached, wrapper.isBinary()));
+        return true;
+    }
+
+    //close a connection idle for too long, ending the sessions used on it
+    private void closeIdle(BufferWrapper wrapper) {
+        for (UUID token : wrapper.getTokens()) {
+            sessions.end(token);
+        }
+        closeConnection(wrapper.getKey());
+        System.out.println("Idle connection closed");
+        logger.add("Closed idle connection " + wrapper.getId());
+    }
+
+    private void closeConnection(SelectionKey key) {
+        if (!key.isValid()) return;
+        key.cancel();
+        ((BufferWrapper) key.attachment()).releaseAll();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {}
+        connections.decrementAndGet();
+    }
+
+}
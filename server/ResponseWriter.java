@@ -0,0 +1,42 @@
+package server;
+
+/**
+ * Destination of the text of a response, the operations render into it piece by piece
+ * instead of building the whole response as a String.
+ */
+public interface ResponseWriter {
+
+    /**
+     * @param text text to add at the end of the response
+     * @return this writer
+     */
+    ResponseWriter append(CharSequence text);
+
+    /**
+     * @param c character to add at the end of the response
+     * @return this writer
+     */
+    ResponseWriter append(char c);
+
+    /**
+     * @param value number to add at the end of the response, in decimal
+     * @return this writer
+     */
+    default ResponseWriter append(int value) {
+        return append(Integer.toString(value));
+    }
+
+    /**
+     * Add text already encoded, like the cached renderings of the posts.
+     *
+     * @param utf8 text encoded in UTF-8
+     * @return this writer
+     */
+    ResponseWriter write(byte[] utf8);
+
+    /**
+     * Drop what has been written so far, to replace it with an error message.
+     */
+    void reset();
+
+}
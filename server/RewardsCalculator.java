@@ -1,38 +1,49 @@
 package server;
 
 import server.data.Comment;
+import server.data.IntSet;
 import server.data.Post;
 import server.data.Rating;
+import server.data.UserIds;
 
-import java.util.*;
+import java.util.Arrays;
 
 public class RewardsCalculator {
 
     /**
+     * Add the rewards of a post to those of the check, indexed by user id.
+     *
      * @param postToCheck post
      * @param lastCheckTime timestamp of the last check
      * @param authorPercentage percentage of points for the post author
-     * @return set of CoinRewards, pairing each username with the amount of coins to award
+     * @param rewards coins awarded so far to each user id, can be shorter than the number of ids
+     * @return the rewards with those of the post added, grown if a user had no slot
      */
-    public static Set<CoinReward> getPointsFromPost(Post postToCheck, long lastCheckTime, float authorPercentage) {
+    public static float[] addPointsFromPost(Post postToCheck, long lastCheckTime, float authorPercentage, float[] rewards) {
         long total = 0;
         String author = postToCheck.author();
 
         //get new likes and who assigned them
-        Set<String> curators = new HashSet<>(postToCheck.postCurators());
-        Rating.Pair likes = postToCheck.newTotalRating(lastCheckTime);
+        IntSet curators = new IntSet();
+        for (int curator : postToCheck.postCurators().ids()) curators.add(curator);
+        Rating.Pair likes = postToCheck.newTotalRating();
         double pointsFromLikes = Math.log(1 + Math.max(0, likes.pos() - likes.neg()));
-        //get new comments and who wrote them
+        //get new comments and who wrote them, sorted by id so the comments of a user are next to each other
         double pointsFromComments = 0;
-        Map<String, Integer> newComments = new HashMap<>();
+        int[] commenters = new int[8];
+        int newComments = 0;
         for (Comment c : postToCheck.comments()) {
             if (!c.author().equals(author) && c.timestamp() > lastCheckTime) {
-                newComments.put(c.author(), newComments.getOrDefault(c.author(), 0) + 1);
-                curators.add(c.author());
+                if (newComments == commenters.length) commenters = Arrays.copyOf(commenters, newComments * 2);
+                commenters[newComments++] = UserIds.idOf(c.author());
             }
         }
-        for (Integer times : newComments.values()) {
+        Arrays.sort(commenters, 0, newComments);
+        for (int i = 0, next; i < newComments; i = next) {
+            for (next = i + 1; next < newComments && commenters[next] == commenters[i]; next++);
+            int times = next - i;
             pointsFromComments += (2 / (1 + Math.exp(-(times - 1))));
+            curators.add(commenters[i]);
         }
         pointsFromComments = Math.log(1 + pointsFromComments);
 
@@ -42,26 +53,23 @@ public class RewardsCalculator {
         //compute the total points and split them between author and curators
         total += (pointsFromComments + pointsFromLikes) / postToCheck.timesChecked().getValue();
 
-        Set<CoinReward> result = new HashSet<>();
         if (total > 0) {
             float authorReward = authorPercentage * total;
             float curatorReward = (1-authorPercentage) * total / Math.max(curators.size(), 1);
 
-            result.add(new CoinReward(author, authorReward));
-            for (String c : curators) {
-                result.add(new CoinReward(c, curatorReward));
+            rewards = credit(rewards, UserIds.idOf(author), authorReward);
+            for (int c : curators.toArray()) {
+                rewards = credit(rewards, c, curatorReward);
             }
         }
 
-        return result;
+        return rewards;
     }
 
-    public record CoinReward(String user, float reward) {
-        @Override
-        public int hashCode() {
-            return user.hashCode();
-        }
+    private static float[] credit(float[] rewards, int user, float reward) {
+        if (user >= rewards.length) rewards = Arrays.copyOf(rewards, Math.max(user + 1, UserIds.count()));
+        rewards[user] += reward;
+        return rewards;
     }
 
-
 }
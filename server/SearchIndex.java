@@ -0,0 +1,186 @@
+package server;
+
+import server.data.Post;
+import server.data.PostStore;
+import server.data.PostingList;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import static server.IWinImpl.postLookup;
+
+/**
+ * Inverted index over the title and the content of the posts, mapping each term to the PostingList of the posts
+ * containing it. Kept updated when posts are created and deleted, built in parallel from the restored posts.
+ * <p>
+ * Results are ranked by the frequency of the terms, weighted by how rare each term is, and boosted by the
+ * ratings the post got in the last RatingMap.RECENT_DAYS days.
+ */
+public class SearchIndex {
+
+    private static final Map<String, PostingList> index = new ConcurrentHashMap<>();
+
+    //terms are the runs of letters and digits, in lower case
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+    //a term in the title counts as this many in the content
+    static final int TITLE_WEIGHT = 2;
+    //longer terms are cut, so a long word doesn't make a long key
+    static final int MAX_TERM_LENGTH = 32;
+    //terms of a query after the first ones are ignored
+    static final int MAX_QUERY_TERMS = 10;
+    //posts restored by each task of the parallel build, at least
+    private static final int MIN_POSTS_PER_TASK = 1024;
+
+    private record Result(int postId, double score) {}
+
+    /**
+     * @param text text to split
+     * @return the terms of the text in order, repeated as they appear
+     */
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        for (String token : SEPARATORS.split(text.toLowerCase(Locale.ROOT))) {
+            if (token.isEmpty()) continue;
+            terms.add(token.length() > MAX_TERM_LENGTH ? token.substring(0, MAX_TERM_LENGTH) : token);
+        }
+        return terms;
+    }
+
+    //times each term appears in the post, counting the title ones TITLE_WEIGHT times
+    private static Map<String, Integer> frequencies(Post post) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String term : terms(post.title())) frequencies.merge(term, TITLE_WEIGHT, Integer::sum);
+        for (String term : terms(post.content())) frequencies.merge(term, 1, Integer::sum);
+        return frequencies;
+    }
+
+    /**
+     * Index a new post.
+     *
+     * @param post post created
+     */
+    public static void add(Post post) {
+        Map<String, Integer> frequencies = frequencies(post);
+        frequencies.forEach((term, frequency) -> index.compute(term, (k, list) -> {
+            if (list == null) list = new PostingList();
+            list.add(post.postId(), frequency);
+            return list;
+        }));
+        //a delete that ran before the post was indexed found nothing to remove
+        if (postLookup.get(post.postId()) != post) remove(post, frequencies.keySet());
+    }
+
+    /**
+     * Remove a deleted post from the index.
+     *
+     * @param post post deleted
+     */
+    public static void remove(Post post) {
+        remove(post, frequencies(post).keySet());
+    }
+
+    private static void remove(Post post, Set<String> terms) {
+        for (String term : terms) {
+            index.computeIfPresent(term, (k, list) -> list.remove(post.postId()) && list.isEmpty() ? null : list);
+        }
+    }
+
+    /**
+     * Build the index from the restored posts, splitting the ids in ranges indexed in parallel
+     * and then joining the lists of each term in order of range.
+     *
+     * @param posts restored posts
+     */
+    static void build(PostStore posts) {
+        long start = System.nanoTime();
+        int last = posts.lastId();
+        int tasks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), last / MIN_POSTS_PER_TASK));
+
+        List<Map<String, PostingList>> ranges = IntStream.range(0, tasks).parallel()
+                .mapToObj(task -> buildRange(posts, (int) ((long) last * task / tasks) + 1, (int) ((long) last * (task + 1) / tasks)))
+                .toList();
+
+        ranges.stream().flatMap(range -> range.keySet().stream()).distinct().parallel().forEach(term -> {
+            PostingList joined = new PostingList();
+            for (Map<String, PostingList> range : ranges) {
+                PostingList list = range.get(term);
+                if (list != null) joined.addAll(list);
+            }
+            index.put(term, joined);
+        });
+
+        ServerMain.logger.add(String.format("Search index built: %d terms in %d ms",
+                index.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    //index the posts with ids in [from, to]
+    private static Map<String, PostingList> buildRange(PostStore posts, int from, int to) {
+        Map<String, PostingList> range = new HashMap<>();
+        for (int id = from; id <= to; id++) {
+            Post post = posts.get(id);
+            if (post == null) continue;
+            int postId = id;
+            frequencies(post).forEach((term, frequency) -> range.computeIfAbsent(term, k -> new PostingList()).add(postId, frequency));
+        }
+        return range;
+    }
+
+    /**
+     * @param query terms to search, a post matches if it contains any of them
+     * @param limit maximum number of results
+     * @return ids of the best matching posts, best first
+     */
+    public static int[] search(String query, int limit) {
+        List<String> terms = terms(query).stream().distinct().limit(MAX_QUERY_TERMS).toList();
+        List<PostingList.Cursor> cursors = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        double posts = Math.max(1, postLookup.lastId());
+        for (String term : terms) {
+            PostingList list = index.get(term);
+            if (list == null || list.isEmpty()) continue;
+            PostingList.Cursor cursor = list.cursor();
+            if (!cursor.next()) continue;
+            cursors.add(cursor);
+            //rare terms count more
+            weights.add(Math.log(1 + posts / list.size()));
+        }
+
+        long now = System.currentTimeMillis();
+        //keep the best results, the head of the queue is the worst of them
+        Comparator<Result> byScore = Comparator.comparingDouble(Result::score).thenComparingInt(Result::postId);
+        PriorityQueue<Result> best = new PriorityQueue<>(byScore);
+
+        //the lists are ordered by id, merge them scoring each post once
+        while (!cursors.isEmpty()) {
+            int postId = Integer.MAX_VALUE;
+            for (PostingList.Cursor cursor : cursors) postId = Math.min(postId, cursor.postId());
+
+            double score = 0;
+            for (int i = cursors.size() - 1; i >= 0; i--) {
+                PostingList.Cursor cursor = cursors.get(i);
+                if (cursor.postId() != postId) continue;
+                score += (1 + Math.log(cursor.frequency())) * weights.get(i);
+                if (!cursor.next()) {
+                    cursors.remove(i);
+                    weights.remove(i);
+                }
+            }
+
+            Post post = postLookup.get(postId);
+            if (post == null) continue;
+            int rating = post.ratings().recentNet(now);
+            if (rating > 0) score *= 1 + Math.log(1 + rating) / 2;
+            else if (rating < 0) score /= 1 + Math.log(1 - rating) / 2;
+
+            best.add(new Result(postId, score));
+            if (best.size() > limit) best.poll();
+        }
+
+        int[] results = new int[best.size()];
+        for (int i = results.length - 1; i >= 0; i--) results[i] = best.poll().postId();
+        return results;
+    }
+}
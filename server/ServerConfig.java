@@ -9,7 +9,55 @@ public record ServerConfig(
         Integer RegPort,
         Float AuthorReward,
         Long PointsAwardInterval,
-        Long selectTimeout
+        Long selectTimeout,
+        Integer ReactorThreads,
+        String ExecutionMode,
+        Integer WorkerThreads,
+        Integer MaxConcurrentRequests,
+        Integer MaxInFlight,
+        Integer MaxInFlightPerConnection,
+        Integer ShedThreshold,
+        Long IdleTimeout,
+        Integer MaxConnections,
+        Integer FanoutThreshold,
+        Long SessionTimeout,
+        Integer MaxSessionsPerUser
         ){
 
+    /**
+     * Fill the settings missing from an older config file.
+     *
+     * @param defaults config with the default values
+     * @return copy of this config where every missing setting is taken from defaults
+     */
+    public ServerConfig withDefaults(ServerConfig defaults) {
+        return new ServerConfig(
+                or(ServerAddress, defaults.ServerAddress),
+                or(MulticastAddress, defaults.MulticastAddress),
+                or(TCPPort, defaults.TCPPort),
+                or(UDPPort, defaults.UDPPort),
+                or(RegHost, defaults.RegHost),
+                or(RegPort, defaults.RegPort),
+                or(AuthorReward, defaults.AuthorReward),
+                or(PointsAwardInterval, defaults.PointsAwardInterval),
+                or(selectTimeout, defaults.selectTimeout),
+                or(ReactorThreads, defaults.ReactorThreads),
+                or(ExecutionMode, defaults.ExecutionMode),
+                or(WorkerThreads, defaults.WorkerThreads),
+                or(MaxConcurrentRequests, defaults.MaxConcurrentRequests),
+                or(MaxInFlight, defaults.MaxInFlight),
+                or(MaxInFlightPerConnection, defaults.MaxInFlightPerConnection),
+                or(ShedThreshold, defaults.ShedThreshold),
+                or(IdleTimeout, defaults.IdleTimeout),
+                or(MaxConnections, defaults.MaxConnections),
+                or(FanoutThreshold, defaults.FanoutThreshold),
+                or(SessionTimeout, defaults.SessionTimeout),
+                or(MaxSessionsPerUser, defaults.MaxSessionsPerUser)
+        );
+    }
+
+    private static <T> T or(T value, T fallback) {
+        return value != null ? value : fallback;
+    }
+
 }
@@ -1,10 +1,13 @@
 package server;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import common.BinaryCodec;
 import common.ServerProxy;
 import common.Triplet;
 import server.data.Post;
 import server.data.User;
+import server.data.UserIds;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -23,6 +26,7 @@ import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static server.RewardsCalculator.*;
 
@@ -30,8 +34,17 @@ public class ServerMain {
 
     public static ServerConfig config;
 
-    //Thread pool for executing requests
-    private static final ExecutorService workerPool = Executors.newCachedThreadPool();
+    //Thread pool for executing requests, created once the configs are loaded
+    private static WorkerPool workerPool;
+    //Limits on the requests in flight
+    static AdmissionControl admission;
+    //Sessions of the logged users, created once the configs are loaded
+    static SessionStore sessions;
+    //Selector threads serving the connections
+    private static Reactor[] reactors;
+
+    //Direct buffers used to encode and send the responses, shared by every reactor
+    static final BufferPool bufferPool = new BufferPool(256);
 
     //Time of the last check of rewards
     static long lastCheck = System.currentTimeMillis();
@@ -48,6 +61,11 @@ public class ServerMain {
             return;
         }
 
+        workerPool = WorkerPool.create(config);
+        admission = new AdmissionControl(config.MaxInFlight(), config.MaxInFlightPerConnection(), config.ShedThreshold());
+        sessions = new SessionStore(config.SessionTimeout() * 1000, config.MaxSessionsPerUser());
+        sessions.startSweeper();
+
         //Set up the proxy for clients registration
         ServerProxy proxy;
         try {
@@ -64,9 +82,10 @@ public class ServerMain {
 
         System.out.println("Server ready");
 
-        ObjectMapper mapper = new ObjectMapper();
         ServerSocketChannel serverSocketChannel;
         Selector selector;
+        reactors = new Reactor[config.ReactorThreads()];
+        Thread[] reactorThreads = new Thread[reactors.length];
 
         try {
             serverSocketChannel = ServerSocketChannel.open();
@@ -74,16 +93,20 @@ public class ServerMain {
             serverSocketChannel.socket().bind(new InetSocketAddress(config.ServerAddress(), config.TCPPort()));
             serverSocketChannel.configureBlocking(false);
             serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+            acceptSelector = selector;
+
+            //start the selector threads that will serve the accepted connections
+            for (int i = 0; i < reactors.length; i++) {
+                reactors[i] = new Reactor(proxy);
+                reactorThreads[i] = new Thread(reactors[i], "reactor-" + i);
+                reactorThreads[i].start();
+            }
         } catch (IOException e) {
             System.out.println("Error setting up Selector");
             e.printStackTrace();
             return;
         }
 
-        //map of future results for each request
-        Map<Integer, Future<String>> outMap = new ConcurrentHashMap<>();
-
-        boolean shutdown = false;
         try (DatagramSocket multicastSocket = new DatagramSocket()) {
             while (!shutdown) {
 
@@ -92,6 +115,7 @@ public class ServerMain {
                     calcAwardAndNotifyWincoins(multicastSocket, lastCheck);
                     lastCheck = System.currentTimeMillis();
                 }
+                admission.logIfShedding();
 
                 //try to select keys, blocking op with timeout to let the points award check run
                 try {
@@ -106,108 +130,40 @@ public class ServerMain {
 
                 while (iterator.hasNext()) {
                     SelectionKey key = iterator.next();
-                    try {
-                        //accept connection and allocate buffer
-                        if (key.isAcceptable()) {
-                            ServerSocketChannel server = (ServerSocketChannel) key.channel();
-                            SocketChannel client = server.accept();
-                            client.configureBlocking(false);
-
-                            //prepare to read, wrap buffer with channelId
-                            BufferWrapper readBuffer = new BufferWrapper(getNextSelectorId(), 512);
-                            client.register(selector, SelectionKey.OP_READ, readBuffer);
-
-                        }
-                        //read request and prepare future task
-                        if (key.isReadable()) {
-                            SocketChannel client = (SocketChannel) key.channel();
-                            BufferWrapper wrapper = ((BufferWrapper) key.attachment());
-                            ByteBuffer buffer = wrapper.getBuffer();
-                            int selectorId = wrapper.getId();
-
-                            //read msg
-                            int bytesRead = client.read(buffer);
-                            String msg = "";
-                            while (bytesRead > 0) {
-                                buffer.flip();
-                                byte[] toConvert = new byte[bytesRead];
-                                buffer.get(toConvert);
-                                String received = new String(toConvert, StandardCharsets.UTF_8).trim();
-                                msg = msg.concat(received);
-                                buffer.clear();
-                                bytesRead = client.read(buffer);
-                            }
-                            //deserialize string to input triplet
-                            Triplet triplet = mapper.readValue(msg, Triplet.class);
-
-                            //special case for logout and shutdown
-                            if (triplet.op() == 0) {
-                                IWinImpl.userIdLookup.remove(triplet.token());
+                    iterator.remove();
+                    //accept connection and hand it to the least loaded reactor
+                    if (key.isValid() && key.isAcceptable()) {
+                        try {
+                            SocketChannel client = ((ServerSocketChannel) key.channel()).accept();
+                            if (client == null) continue;
+                            //refuse connections over the limit
+                            if (openConnections() >= config.MaxConnections()) {
                                 client.close();
-                                outMap.remove(selectorId);
-                                key.cancel();
-                                System.out.println("Connection with client closed");
-                                if (triplet.args().equals("shutdown")) {
-                                    shutdown = true;
-                                    workerPool.shutdown();
-                                }
+                                logger.add("Connection refused, limit of " + config.MaxConnections() + " reached");
                                 continue;
-                            } else {
-                                //execute user operation
-                                String message = triplet.op() + " | args: " + triplet.args() + " da: " + triplet.token() + '\n';
-                                logger.add("Executing : " + message);
-
-                                checkAndExecute(selectorId, outMap, triplet, proxy);
-                            }
-
-                            //switch to write
-                            client.register(selector, SelectionKey.OP_WRITE, wrapper);
-
-                        } else if (key.isWritable()) {
-
-                            SocketChannel client = (SocketChannel) key.channel();
-                            BufferWrapper wrapper = ((BufferWrapper) key.attachment());
-                            int selectorId = wrapper.getId();
-
-                            // send the result back to client if ready
-                            try {
-                                if (outMap.containsKey(selectorId) && outMap.get(selectorId).isDone()) {
-                                    String out = outMap.get(selectorId).get();
-                                    byte[] toEcho = out.getBytes(StandardCharsets.UTF_8);
-
-                                    //send the length of the message
-                                    ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
-                                    length.putInt(toEcho.length);
-                                    length.flip();
-                                    client.write(length);
-                                    length.clear();
-
-                                    //send the message
-                                    ByteBuffer buffer = wrapper.newBuffer(toEcho.length);
-                                    buffer.clear();
-                                    buffer.put(toEcho);
-                                    buffer.flip();
-                                    client.write(buffer);
-
-                                    //back to read
-                                    buffer.clear();
-                                    client.register(selector, SelectionKey.OP_READ, wrapper);
-                                }
-                            } catch (ExecutionException | InterruptedException e) {
-                                e.printStackTrace();
                             }
+                            leastLoaded(reactors).register(client);
+                        } catch (IOException e) {
+                            e.printStackTrace();
                         }
-                    } catch (IOException e) {
-                        key.cancel();
                     }
-                    iterator.remove();
                 }
             }
             selector.close();
+            serverSocketChannel.close();
 
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
+            //stop serving connections before saving
+            for (Reactor reactor : reactors) reactor.stop();
+            for (Thread thread : reactorThreads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ignored) {}
+            }
+            workerPool.shutdown();
+            sessions.stopSweeper();
             PersistentDataManager.saveAll();
         }
 
@@ -221,25 +177,149 @@ public class ServerMain {
     }
 
 
+    private static volatile boolean shutdown = false;
+    private static Selector acceptSelector;
+
+    /**
+     * Stop accepting connections and start the server shutdown.
+     */
+    static void shutdown() {
+        shutdown = true;
+        if (acceptSelector != null) acceptSelector.wakeup();
+    }
+
+    private static int openConnections() {
+        int open = 0;
+        for (Reactor reactor : reactors) open += reactor.connectionCount();
+        return open;
+    }
+
+    private static Reactor leastLoaded(Reactor[] reactors) {
+        Reactor chosen = reactors[0];
+        for (Reactor reactor : reactors) {
+            if (reactor.connectionCount() < chosen.connectionCount()) chosen = reactor;
+        }
+        return chosen;
+    }
+
     /**
-     * @param requestId id of the current request
-     * @param outMap map <id futureResult>
-     * @param tri triplet with the user input
+     * Submit the request to the worker pool. Once done, the response is queued on the connection
+     * and its reactor is woken up to send it. Ordered requests wait for the previous ordered ones of the connection.
+     *
+     * @param wrapper connection that sent the request
+     * @param request request with the user input
      * @param proxy remote object to make callbacks to client
      */
-    private static void checkAndExecute(int requestId, Map<Integer, Future<String>> outMap, Triplet tri, ServerProxy proxy) {
-        IWin worker = new IWinImpl(tri, proxy);
+    static void checkAndExecute(BufferWrapper wrapper, BufferWrapper.Request request, ServerProxy proxy) {
+        IWinImpl worker = new IWinImpl(request.triplet(), proxy);
+        admission.admit(wrapper);
+        Runnable task = () -> {
+            BufferResponseWriter out = new BufferResponseWriter(bufferPool, wrapper.isBinary());
+            try {
+                worker.execute(out);
+            } catch (Exception e) {
+                e.printStackTrace();
+                out.reset();
+                out.append("Error while executing the request");
+            }
+            wrapper.enqueue(finishResponse(request.id(), worker, out, wrapper.isBinary()));
+            //back under the global limit, let every reactor resume its paused connections
+            if (admission.complete(wrapper)) {
+                for (Reactor reactor : reactors) reactor.wakeup();
+            }
+            wrapper.getReactor().responseReady(wrapper);
+        };
+        if (request.ordered())
+            wrapper.executeOrdered(task, workerPool);
+        else
+            workerPool.execute(task);
+    }
+
+    //json clients read every login response as a Triplet, a rejected login is answered with a failed login result
+    private static final byte[] BUSY_LOGIN = encodeBusyLogin();
+
+    private static byte[] encodeBusyLogin() {
         try {
-            outMap.put(requestId, workerPool.submit(worker));
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            return new ObjectMapper().writeValueAsBytes(new Triplet(AdmissionControl.BUSY_MESSAGE, -1, null));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param wrapper connection to answer
+     * @param op operation of the rejected request
+     * @return body of the response sent to the requests rejected because of overload
+     */
+    static byte[] encodeBusy(BufferWrapper wrapper, int op) {
+        if (wrapper.isBinary()) return BinaryCodec.encodeResponse(BinaryCodec.BUSY, AdmissionControl.BUSY_MESSAGE);
+        return op == 100 ? BUSY_LOGIN : AdmissionControl.BUSY_MESSAGE.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param requestId id of the request being answered
+     * @param worker worker that executed the request
+     * @param out writer holding the result of the request
+     * @param binary true if the connection uses the binary codec, login results are then sent as structured data
+     * @return the response, ready to be written
+     */
+    private static ByteBuffer[] finishResponse(int requestId, IWinImpl worker, BufferResponseWriter out, boolean binary) {
+        if (binary) {
+            Triplet login = worker.loginResult();
+            if (login != null) {
+                out.release();
+                return encodeResponse(requestId, login.token() != null ? BinaryCodec.encodeLogin(login)
+                        : BinaryCodec.encodeResponse(BinaryCodec.LOGIN_FAILED, login.args()));
+            }
+            if (worker.authError()) out.setStatus(BinaryCodec.AUTH_ERROR);
+        }
+        return out.finish(requestId);
+    }
+
+    /**
+     * Encode the response into pooled buffers. Responses bigger than the biggest pooled buffer are split into many chunks.
+     *
+     * @param requestId id of the request being answered
+     * @param toEcho body of the response
+     * @return header with the frame length and the request id, followed by the message chunks, ready to be written
+     */
+    static ByteBuffer[] encodeResponse(int requestId, byte[] toEcho) {
+        return encodeResponse(requestId, toEcho, false);
+    }
+
+    /**
+     * Variant of encodeResponse for bodies shared between responses, like the cached post renderings.
+     *
+     * @param requestId id of the request being answered
+     * @param toEcho text of the response, it's only copied
+     * @param binaryOk true to put the OK status of the binary codec before the text
+     * @return header with the frame length and the request id, followed by the message chunks, ready to be written
+     */
+    static ByteBuffer[] encodeResponse(int requestId, byte[] toEcho, boolean binaryOk) {
+        int chunkSize = bufferPool.maxBufferSize();
+        ByteBuffer[] message = new ByteBuffer[1 + Math.max(1, (toEcho.length + chunkSize - 1) / chunkSize)];
+
+        int status = binaryOk ? Byte.BYTES : 0;
+        message[0] = bufferPool.acquire(2 * Integer.BYTES + status);
+        message[0].putInt(Integer.BYTES + status + toEcho.length);
+        message[0].putInt(requestId);
+        if (binaryOk) message[0].put(BinaryCodec.OK);
+        message[0].flip();
+
+        for (int i = 1, offset = 0; i < message.length; i++) {
+            int length = Math.min(chunkSize, toEcho.length - offset);
+            message[i] = bufferPool.acquire(length);
+            message[i].put(toEcho, offset, length);
+            message[i].flip();
+            offset += length;
         }
+        return message;
     }
-    static int selectorCounter = 1;
+
+    static final AtomicInteger selectorCounter = new AtomicInteger(1);
 
     public static int getNextSelectorId() {
-        selectorCounter++;
-        return selectorCounter;
+        return selectorCounter.incrementAndGet();
     }
 
     static final String winCoinUpdateNotify = "WinCoins awarded\n";
@@ -253,19 +333,21 @@ public class ServerMain {
      */
     public static void calcAwardAndNotifyWincoins(DatagramSocket group, long lastCheckTime) throws IOException {
 
-        Map<String, Float> RewardMap = new HashMap<>();
+        //coins of each user id
+        float[] rewards = new float[UserIds.count()];
         //for each post award points to author and curators
-        for (Post p : IWinImpl.postLookup.values()) {
-            for (CoinReward coins : getPointsFromPost(p, lastCheckTime, config.AuthorReward())) {
-                RewardMap.put(coins.user(), RewardMap.getOrDefault(coins.user(), 0F) + coins.reward());
-            }
+        for (Post p : IWinImpl.postLookup) {
+            rewards = addPointsFromPost(p, lastCheckTime, config.AuthorReward(), rewards);
         }
 
         long time = System.currentTimeMillis();
-        for (var reward : RewardMap.entrySet()){
-            User u = IWinImpl.userMap.get(reward.getKey());
-            u.wallet().add(new User.Transaction(reward.getValue(), time));
-            logger.add(String.format("%s : Awarded %.2f wincoins to %s", time, reward.getValue(), reward.getKey()));
+        for (int id = 0; id < rewards.length; id++) {
+            if (rewards[id] <= 0) continue;
+            String username = UserIds.nameOf(id);
+            User u = IWinImpl.userMap.get(username);
+            u.wallet().add(new User.Transaction(rewards[id], time));
+            u.wallet().compact(time);
+            logger.add(String.format("%s : Awarded %.2f wincoins to %s", time, rewards[id], username));
         }
 
         //create udp packet to send through multicast to notify clients
@@ -13,7 +13,6 @@ import java.util.stream.Collectors;
 
 import static server.data.TextValidator.validatePassword;
 import static server.data.TextValidator.validateUsername;
-import static server.IWinImpl.userIdLookup;
 import static server.IWinImpl.userMap;
 
 public class ServerProxyImpl extends RemoteServer implements ServerProxy {
@@ -27,10 +26,10 @@ public class ServerProxyImpl extends RemoteServer implements ServerProxy {
     public synchronized Triplet register(String username, String password, String... tagList) {
         UUID id = null;
         if (!userMap.containsKey(username) && validatePassword(password) && validateUsername(username)) {
-            id = UUID.randomUUID();
             User newUser = new User(username, password, Arrays.stream(tagList).filter(s -> !s.isEmpty()).collect(Collectors.toUnmodifiableSet()));
             userMap.put(username, newUser);
-            userIdLookup.put(id, username);
+            IWinImpl.indexTags(newUser);
+            id = ServerMain.sessions.create(newUser);
             ServerMain.logger.add("Registered new user: " + username);
         }
         return new Triplet(ServerMain.config.MulticastAddress(), ServerMain.config.UDPPort(), id);
@@ -48,7 +47,7 @@ public class ServerProxyImpl extends RemoteServer implements ServerProxy {
     public synchronized void registerForCallback(UUID token, ClientProxy callbackClient) throws RemoteException {
         if (!clients.containsKey(token)) {
             clients.put(token, callbackClient);
-            tryNotifyFollowersUpdate(userIdLookup.get(token));
+            tryNotifyFollowersUpdate(ServerMain.sessions.username(token));
             System.out.println("New client registered for callbacks :"+ token +".");
         } else throw new RemoteException("Client already registered for callbacks.");
     }
@@ -66,7 +65,7 @@ public class ServerProxyImpl extends RemoteServer implements ServerProxy {
     public synchronized void tryNotifyFollowersUpdate(String toUpdate) throws RemoteException {
         //se il client da notificare è registrato per il callback, la sua cache dei followers viene aggiornata
         for (UUID token : clients.keySet()){
-            if (userIdLookup.containsKey(token) && userIdLookup.get(token).equals(toUpdate)){
+            if (toUpdate != null && toUpdate.equals(ServerMain.sessions.username(token))){
                 List<String> followers = IWinImpl.getUserFollowers(toUpdate);
                 clients.get(token).updateFollowersCache(followers);
             }
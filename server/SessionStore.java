@@ -0,0 +1,150 @@
+package server;
+
+import server.data.User;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sessions of the logged users, resolving a token straight to its User.
+ * <p>
+ * A session expires after SessionTimeout seconds without requests, expired sessions are removed by a background
+ * sweeper. A user can have at most MaxSessionsPerUser sessions, logging in again ends the oldest one.
+ */
+public class SessionStore {
+
+    private static final class Session {
+        final UUID token;
+        final User user;
+        volatile long lastSeen;
+
+        Session(UUID token, User user, long now) {
+            this.token = token;
+            this.user = user;
+            this.lastSeen = now;
+        }
+    }
+
+    private final Map<UUID, Session> sessions = new ConcurrentHashMap<>();
+    //tokens of each user, oldest first
+    private final Map<String, Deque<UUID>> byUser = new ConcurrentHashMap<>();
+    private final long timeoutMillis;
+    private final int maxPerUser;
+    private ScheduledExecutorService sweeper;
+
+    /**
+     * @param timeoutMillis inactivity after which a session expires, in milliseconds
+     * @param maxPerUser maximum number of sessions of the same user
+     */
+    public SessionStore(long timeoutMillis, int maxPerUser) {
+        this.timeoutMillis = timeoutMillis;
+        this.maxPerUser = maxPerUser;
+    }
+
+    /**
+     * Start a session, ending the oldest session of the user if they have too many.
+     *
+     * @param user user logged in
+     * @return token of the new session
+     */
+    public UUID create(User user) {
+        UUID token = UUID.randomUUID();
+        sessions.put(token, new Session(token, user, System.currentTimeMillis()));
+        Deque<UUID> tokens = byUser.computeIfAbsent(user.username(), k -> new ArrayDeque<>());
+        synchronized (tokens) {
+            tokens.addLast(token);
+            while (tokens.size() > maxPerUser) {
+                sessions.remove(tokens.pollFirst());
+            }
+        }
+        return token;
+    }
+
+    /**
+     * Find the user of a session, extending the session.
+     *
+     * @param token token of the session, can be null
+     * @return the user of the session, null if the token is missing, unknown or expired
+     */
+    public User resolve(UUID token) {
+        if (token == null) return null;
+        Session session = sessions.get(token);
+        if (session == null) return null;
+        long now = System.currentTimeMillis();
+        if (now - session.lastSeen > timeoutMillis) {
+            end(token);
+            return null;
+        }
+        session.lastSeen = now;
+        return session.user;
+    }
+
+    /**
+     * @param token token of the session, can be null
+     * @return username of the user of the session without extending it, null if there is no such session
+     */
+    public String username(UUID token) {
+        Session session = token != null ? sessions.get(token) : null;
+        return session != null ? session.user.username() : null;
+    }
+
+    /**
+     * @param token token of the session to end, can be null
+     */
+    public void end(UUID token) {
+        if (token == null) return;
+        Session session = sessions.remove(token);
+        if (session == null) return;
+        Deque<UUID> tokens = byUser.get(session.user.username());
+        if (tokens != null) {
+            synchronized (tokens) {
+                tokens.remove(token);
+            }
+        }
+    }
+
+    /**
+     * Remove the sessions expired.
+     *
+     * @param now current time in milliseconds
+     * @return number of sessions removed
+     */
+    public int sweep(long now) {
+        int expired = 0;
+        for (Session session : sessions.values()) {
+            if (now - session.lastSeen > timeoutMillis) {
+                end(session.token);
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Start the background sweeper, running every quarter of the timeout and at most every minute.
+     */
+    public void startSweeper() {
+        long period = Math.max(1000, Math.min(timeoutMillis / 4, 60_000));
+        sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleAtFixedRate(() -> {
+            int expired = sweep(System.currentTimeMillis());
+            if (expired > 0) ServerMain.logger.add("Expired sessions removed: " + expired);
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void stopSweeper() {
+        if (sweeper != null) sweeper.shutdownNow();
+    }
+
+}
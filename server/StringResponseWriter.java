@@ -0,0 +1,45 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ResponseWriter collecting the response in a String, used when the result of an operation is needed as text.
+ */
+public class StringResponseWriter implements ResponseWriter {
+
+    private final StringBuilder builder = new StringBuilder();
+
+    @Override
+    public ResponseWriter append(CharSequence text) {
+        builder.append(text);
+        return this;
+    }
+
+    @Override
+    public ResponseWriter append(char c) {
+        builder.append(c);
+        return this;
+    }
+
+    @Override
+    public ResponseWriter append(int value) {
+        builder.append(value);
+        return this;
+    }
+
+    @Override
+    public ResponseWriter write(byte[] utf8) {
+        builder.append(new String(utf8, StandardCharsets.UTF_8));
+        return this;
+    }
+
+    @Override
+    public void reset() {
+        builder.setLength(0);
+    }
+
+    @Override
+    public String toString() {
+        return builder.toString();
+    }
+}
@@ -0,0 +1,221 @@
+package server;
+
+import server.data.Post;
+import server.data.User;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static server.IWinImpl.*;
+import static server.ServerMain.config;
+
+/**
+ * Materialized feeds of the users, kept updated when blogs and follows change instead of being rebuilt at each read.
+ * <p>
+ * The posts in the blog of a user are pushed to the timelines of their followers, each entry counting how many
+ * followed blogs contain the post. Users with more than FanoutThreshold followers are pulled instead: their posts are
+ * not pushed, but merged at read time, so a post of a popular user doesn't cause an insert for each follower.
+ * A pulled user goes back to being pushed when the followers drop to half the threshold.
+ * <p>
+ * Changes to the blog and to the followers of a user are made under the lock of that user, so a post
+ * is never pushed twice to the same timeline.
+ */
+public class Timelines {
+
+    //timeline of each user, post -> number of followed blogs containing it
+    private static final Map<String, ConcurrentNavigableMap<Post, Integer>> timelines = new ConcurrentHashMap<>();
+    //users whose posts are merged at read time
+    private static final Set<String> pulled = ConcurrentHashMap.newKeySet();
+
+    private static final Object[] locks = new Object[64];
+
+    static {
+        for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+    }
+
+    private static Object lockOf(User user) {
+        return locks[Math.floorMod(user.username().hashCode(), locks.length)];
+    }
+
+    private static ConcurrentNavigableMap<Post, Integer> timelineOf(String username) {
+        return timelines.computeIfAbsent(username, k -> new ConcurrentSkipListMap<>());
+    }
+
+    /**
+     * Add a post to a blog, push it to the followers of its owner and add the owner to the holders of the post.
+     *
+     * @param user owner of the blog
+     * @param post post created or rewinned
+     * @return false if the post was already in the blog or has been deleted
+     */
+    public static boolean addToBlog(User user, Post post) {
+        synchronized (lockOf(user)) {
+            if (!user.blog().add(post)) return false;
+            Set<String> holders = postHolders.get(post.postId());
+            if (holders != null) holders.add(user.username());
+            //a delete that missed this holder has already removed the post from the lookup
+            if (!postLookup.containsKey(post.postId())) {
+                user.blog().remove(post);
+                return false;
+            }
+            if (!pulled.contains(user.username())) {
+                for (String follower : followersOf(user.username())) {
+                    timelineOf(follower).merge(post, 1, Integer::sum);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Remove a deleted post from a blog holding it and from the timelines of the followers of the owner.
+     *
+     * @param user author or rewinner of the post
+     * @param post deleted post
+     */
+    public static void removeFromBlog(User user, Post post) {
+        synchronized (lockOf(user)) {
+            if (!user.blog().remove(post)) return;
+            //the posts of a pulled user were never pushed
+            if (pulled.contains(user.username())) return;
+            for (String follower : followersOf(user.username())) {
+                ConcurrentNavigableMap<Post, Integer> timeline = timelines.get(follower);
+                if (timeline != null) timeline.remove(post);
+            }
+        }
+    }
+
+    /**
+     * @param follower user that starts following
+     * @param followed user to follow
+     */
+    public static void follow(User follower, User followed) {
+        synchronized (lockOf(followed)) {
+            if (!follower.followUser(followed.username())) return;
+            if (!pulled.contains(followed.username())) {
+                ConcurrentNavigableMap<Post, Integer> timeline = timelineOf(follower.username());
+                for (Post post : followed.blog()) {
+                    timeline.merge(post, 1, Integer::sum);
+                }
+            }
+            updateMode(followed);
+        }
+    }
+
+    /**
+     * @param follower user that stops following
+     * @param followed user to unfollow
+     */
+    public static void unfollow(User follower, User followed) {
+        synchronized (lockOf(followed)) {
+            if (!follower.unfollowUser(followed.username())) return;
+            if (!pulled.contains(followed.username())) {
+                ConcurrentNavigableMap<Post, Integer> timeline = timelineOf(follower.username());
+                for (Post post : followed.blog()) {
+                    timeline.computeIfPresent(post, (p, count) -> count > 1 ? count - 1 : null);
+                }
+            }
+            updateMode(followed);
+        }
+    }
+
+    //switch between push and pull when the followers cross the threshold, moving the posts already pushed
+    private static void updateMode(User user) {
+        int followers = followersOf(user.username()).size();
+        if (!pulled.contains(user.username()) && followers > config.FanoutThreshold()) {
+            pulled.add(user.username());
+            for (String follower : followersOf(user.username())) {
+                ConcurrentNavigableMap<Post, Integer> timeline = timelineOf(follower);
+                for (Post post : user.blog()) {
+                    timeline.computeIfPresent(post, (p, count) -> count > 1 ? count - 1 : null);
+                }
+            }
+        } else if (pulled.contains(user.username()) && followers <= config.FanoutThreshold() / 2) {
+            for (String follower : followersOf(user.username())) {
+                ConcurrentNavigableMap<Post, Integer> timeline = timelineOf(follower);
+                for (Post post : user.blog()) {
+                    timeline.merge(post, 1, Integer::sum);
+                }
+            }
+            pulled.remove(user.username());
+        }
+    }
+
+    /**
+     * Merge the timeline and the blogs of the pulled users lazily, so reading a page only walks the posts in it.
+     *
+     * @param user owner of the feed
+     * @param after id of the last post already read, 0 to read from the start
+     * @return iterator over the posts in the blogs followed by the user with id higher than after, ordered by postId
+     */
+    public static Iterator<Post> feedOf(User user, int after) {
+        //posts are compared by id only
+        Post from = new Post(null, after, null, null);
+        Iterator<Post> timeline = timelineOf(user.username()).keySet().tailSet(from, false).iterator();
+
+        List<Iterator<Post>> blogs = new ArrayList<>();
+        for (String followed : user.followedUsers()) {
+            if (!pulled.contains(followed)) continue;
+            User followedUser = userMap.get(followed);
+            if (followedUser != null) blogs.add(followedUser.blog().tailSet(from, false).iterator());
+        }
+        return blogs.isEmpty() ? timeline : new MergingIterator(timeline, blogs);
+    }
+
+    /**
+     * K-way merge of iterators ordered by postId, a post in more of them is returned once.
+     */
+    private static class MergingIterator implements Iterator<Post> {
+        private record Head(Post post, Iterator<Post> rest) {}
+
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(Comparator.comparing(Head::post));
+        private Post last = null;
+
+        MergingIterator(Iterator<Post> timeline, List<Iterator<Post>> blogs) {
+            push(timeline);
+            for (Iterator<Post> blog : blogs) push(blog);
+        }
+
+        private void push(Iterator<Post> posts) {
+            if (posts.hasNext()) heads.add(new Head(posts.next(), posts));
+        }
+
+        @Override
+        public boolean hasNext() {
+            //skip the copies of the post returned last
+            while (!heads.isEmpty() && last != null && heads.peek().post().compareTo(last) == 0) push(heads.poll().rest());
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Post next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Head head = heads.poll();
+            push(head.rest());
+            last = head.post();
+            return last;
+        }
+    }
+
+    /**
+     * Build the timelines of the restored users, the followers index must be already filled.
+     */
+    static void rebuild() {
+        for (User user : userMap.values()) {
+            if (followersOf(user.username()).size() > config.FanoutThreshold()) pulled.add(user.username());
+        }
+        for (User user : userMap.values()) {
+            ConcurrentNavigableMap<Post, Integer> timeline = timelineOf(user.username());
+            for (String followed : user.followedUsers()) {
+                User followedUser = userMap.get(followed);
+                if (followedUser == null || pulled.contains(followed)) continue;
+                for (Post post : followedUser.blog()) {
+                    timeline.merge(post, 1, Integer::sum);
+                }
+            }
+        }
+    }
+
+}
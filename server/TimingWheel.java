@@ -0,0 +1,82 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel tracking the idle timeout of the connections of a reactor, advanced at every selector tick.
+ * <p>
+ * Activity on a connection only updates its timestamp: when the slot of a connection comes up, the connection is
+ * expired if it has been idle for the whole timeout, otherwise it is moved to the slot of its new deadline.
+ * The wheel has at most MAX_SLOTS slots: a deadline more than a round away is checked once per round until it comes,
+ * and the slots are created when first used.
+ * Not thread safe, only used by the thread of its reactor.
+ */
+public class TimingWheel {
+
+    //with short ticks and long timeouts, the deadlines further than this many ticks take more than one round
+    static final int MAX_SLOTS = 4096;
+
+    private final ArrayDeque<BufferWrapper>[] slots;
+    private final long tickMillis;
+    private final long timeoutMillis;
+    //last tick processed
+    private long currentTick;
+
+    /**
+     * @param tickMillis duration of a slot, in milliseconds
+     * @param timeoutMillis inactivity after which a connection expires, in milliseconds
+     * @param now current time in milliseconds
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, long timeoutMillis, long now) {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.timeoutMillis = timeoutMillis;
+        //enough slots to never wrap around within a timeout, unless there would be more than MAX_SLOTS
+        slots = new ArrayDeque[(int) Math.min(timeoutMillis / this.tickMillis + 2, MAX_SLOTS)];
+        currentTick = now / this.tickMillis;
+    }
+
+    /**
+     * Start tracking a connection, using its last activity as the start of the timeout.
+     *
+     * @param connection connection to track
+     */
+    public void schedule(BufferWrapper connection) {
+        long deadlineTick = (connection.lastActivity() + timeoutMillis) / tickMillis + 1;
+        //deadlines already passed are checked at the next tick
+        deadlineTick = Math.max(deadlineTick, currentTick + 1);
+        int index = (int) (deadlineTick % slots.length);
+        if (slots[index] == null) slots[index] = new ArrayDeque<>();
+        slots[index].add(connection);
+    }
+
+    /**
+     * Process the slots up to the current time.
+     *
+     * @param now current time in milliseconds
+     * @param expired called for each connection idle for longer than the timeout, it's not tracked anymore
+     */
+    public void advance(long now, Consumer<BufferWrapper> expired) {
+        long nowTick = now / tickMillis;
+        //after a long stall, a single round of the wheel already visits every connection
+        long from = Math.max(currentTick + 1, nowTick - slots.length + 1);
+        for (long tick = from; tick <= nowTick; tick++) {
+            currentTick = tick;
+            ArrayDeque<BufferWrapper> slot = slots[(int) (tick % slots.length)];
+            if (slot == null) continue;
+            //connections moved back to this slot, with a deadline a round away, are checked at the next round
+            for (int i = slot.size(); i > 0; i--) {
+                BufferWrapper connection = slot.poll();
+                if (connection.isClosed()) continue;
+                if (connection.inFlight() == 0 && now - connection.lastActivity() >= timeoutMillis) {
+                    expired.accept(connection);
+                } else {
+                    schedule(connection);
+                }
+            }
+        }
+        currentTick = Math.max(currentTick, nowTick);
+    }
+
+}
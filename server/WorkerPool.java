@@ -0,0 +1,85 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor of the client requests. Depending on ExecutionMode in the configs, requests run on a fixed pool
+ * of platform threads or on a new virtual thread each, with the number of requests running at the same time
+ * bounded by a semaphore.
+ */
+public class WorkerPool implements Executor {
+
+    private final ExecutorService executor;
+    //bound on the running requests, null when the executor is already bounded by its threads
+    private final Semaphore permits;
+
+    private WorkerPool(ExecutorService executor, Semaphore permits) {
+        this.executor = executor;
+        this.permits = permits;
+    }
+
+    /**
+     * @param config server configs, reads ExecutionMode, WorkerThreads and MaxConcurrentRequests
+     * @return the executor for the mode in the configs
+     */
+    public static WorkerPool create(ServerConfig config) {
+        if ("virtual".equalsIgnoreCase(config.ExecutionMode())) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                System.out.println("Requests executed on virtual threads, at most " + config.MaxConcurrentRequests() + " at the same time.");
+                return new WorkerPool(virtual, new Semaphore(config.MaxConcurrentRequests()));
+            }
+            System.out.println("Virtual threads are not supported by this JVM, using a pool of platform threads.");
+        }
+        System.out.println("Requests executed on " + config.WorkerThreads() + " platform threads.");
+        return new WorkerPool(Executors.newFixedThreadPool(config.WorkerThreads()), null);
+    }
+
+    //Executors#newVirtualThreadPerTaskExecutor is only available from Java 21, look it up to keep running on older JVMs
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Run the task, waiting for a free permit on its own thread when the concurrency limit is reached.
+     *
+     * @param task the runnable task
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (permits == null) {
+            executor.execute(task);
+            return;
+        }
+        executor.execute(() -> {
+            permits.acquireUninterruptibly();
+            try {
+                task.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Stop accepting new requests and wait for the running ones to complete.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS))
+                System.out.println("Some requests were still running at shutdown.");
+        } catch (InterruptedException ignored) {}
+    }
+
+}
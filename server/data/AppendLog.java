@@ -0,0 +1,103 @@
+package server.data;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.util.*;
+
+/**
+ * Thread-safe list that can only grow, stored in fixed size chunks so an append never copies the elements already
+ * added. Appends are serialized, reads don't lock and see all the elements added before they started.
+ * Saved as a json array.
+ *
+ * @param <E> type of the elements
+ */
+public class AppendLog<E> implements Iterable<E> {
+
+    private static final int CHUNK_BITS = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    //written before size, so a reader that sees a size also sees the chunks holding it
+    private volatile Object[][] chunks = new Object[4][];
+    private volatile int size = 0;
+
+    public AppendLog() {}
+
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public AppendLog(List<E> elements) {
+        for (E element : elements) add(element);
+    }
+
+    /**
+     * @param element element to add at the end of the log
+     */
+    public synchronized void add(E element) {
+        int index = size;
+        Object[][] current = chunks;
+        int chunk = index >>> CHUNK_BITS;
+        if (chunk == current.length) {
+            //only the references to the chunks are copied
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        if (current[chunk] == null) current[chunk] = new Object[CHUNK_SIZE];
+        current[chunk][index & (CHUNK_SIZE - 1)] = element;
+        chunks = current;
+        size = index + 1;
+    }
+
+    /**
+     * @param index position of the element
+     * @return the element at the position
+     * @throws IndexOutOfBoundsException if the index is not lower than the size
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        Objects.checkIndex(index, size);
+        return (E) chunks[index >>> CHUNK_BITS][index & (CHUNK_SIZE - 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return iterator over the elements added before the call
+     */
+    @Override
+    public Iterator<E> iterator() {
+        int end = size;
+        return new Iterator<>() {
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            @Override
+            public E next() {
+                if (next >= end) throw new NoSuchElementException();
+                return get(next++);
+            }
+        };
+    }
+
+    /**
+     * @return copy of the elements, used to save the log
+     */
+    @JsonValue
+    public List<E> toList() {
+        List<E> list = new ArrayList<>(size);
+        for (E element : this) list.add(element);
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+}
@@ -0,0 +1,171 @@
+package server.data;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Thread-safe set of non negative ints, kept in an open addressing table of primitives so it costs a few bytes
+ * per element instead of a boxed Integer and a map entry.
+ * <p>
+ * Writes take the write lock of a StampedLock, reads are optimistic and only take the read lock if a write
+ * happened meanwhile, so the readers of a set that rarely changes, like the followers of a user, never block
+ * each other.
+ */
+public class IntSet {
+
+    private static final int EMPTY = -1;
+    private static final int MIN_CAPACITY = 4;
+
+    private final StampedLock lock = new StampedLock();
+    private int[] table = newTable(MIN_CAPACITY);
+    private int size = 0;
+
+    /**
+     * @param value value to add, not negative
+     * @return false if the value was already in the set
+     */
+    public boolean add(int value) {
+        if (value < 0) throw new IllegalArgumentException("Negative value: " + value);
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotOf(table, value);
+            if (table[slot] == value) return false;
+            table[slot] = value;
+            //keep the table at most half full
+            if (++size * 2 > table.length) rehash(table.length * 2);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @param value value to remove
+     * @return false if the value was not in the set
+     */
+    public boolean remove(int value) {
+        if (value < 0) return false;
+        long stamp = lock.writeLock();
+        try {
+            int mask = table.length - 1;
+            int slot = slotOf(table, value);
+            if (table[slot] != value) return false;
+            //shift back the following values of the run, so lookups never stop at the hole
+            int hole = slot;
+            for (int i = (hole + 1) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+                int home = hash(table[i]) & mask;
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    table[hole] = table[i];
+                    hole = i;
+                }
+            }
+            table[hole] = EMPTY;
+            size--;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public boolean contains(int value) {
+        if (value < 0) return false;
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            boolean found = find(table, value);
+            if (lock.validate(stamp)) return found;
+        }
+        stamp = lock.readLock();
+        try {
+            return find(table, value);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int current = size;
+        if (stamp != 0 && lock.validate(stamp)) return current;
+        stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return copy of the values, in no particular order
+     */
+    public int[] toArray() {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int[] values = copy(table, size);
+            if (lock.validate(stamp)) return values;
+        }
+        stamp = lock.readLock();
+        try {
+            return copy(table, size);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param action action called on a copy of the values, so it can modify the set
+     */
+    public void forEach(IntConsumer action) {
+        for (int value : toArray()) action.accept(value);
+    }
+
+    private void rehash(int capacity) {
+        int[] old = table;
+        int[] resized = newTable(capacity);
+        for (int value : old) {
+            if (value != EMPTY) resized[slotOf(resized, value)] = value;
+        }
+        table = resized;
+    }
+
+    //slot holding the value, or the empty slot where it would go, only called under the write lock
+    private static int slotOf(int[] table, int value) {
+        int mask = table.length - 1;
+        int slot = hash(value) & mask;
+        while (table[slot] != EMPTY && table[slot] != value) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    //the table can change during an optimistic read, so the probe is bounded and its result checked by the caller
+    private static boolean find(int[] table, int value) {
+        int mask = table.length - 1;
+        int slot = hash(value) & mask;
+        for (int probes = 0; probes < table.length; probes++, slot = (slot + 1) & mask) {
+            if (table[slot] == value) return true;
+            if (table[slot] == EMPTY) return false;
+        }
+        return false;
+    }
+
+    //same as find, the copy stops when full instead of overflowing
+    private static int[] copy(int[] table, int size) {
+        int[] values = new int[size];
+        int i = 0;
+        for (int slot = 0; slot < table.length && i < size; slot++) {
+            if (table[slot] != EMPTY) values[i++] = table[slot];
+        }
+        return values;
+    }
+
+    //ids are dense, spread them so consecutive ids don't make long runs
+    private static int hash(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int[] newTable(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+}
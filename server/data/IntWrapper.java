@@ -2,9 +2,13 @@ package server.data;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 public class IntWrapper {
+    private static final AtomicIntegerFieldUpdater<IntWrapper> updater = AtomicIntegerFieldUpdater.newUpdater(IntWrapper.class, "value");
+
     @JsonProperty("value")
-    volatile Integer value;
+    volatile int value;
 
     public IntWrapper(){}
 
@@ -13,15 +17,15 @@ public class IntWrapper {
         value = val;
     }
 
-    public synchronized void setValue(int val) {
+    public void setValue(int val) {
         this.value = val;
     }
-    public synchronized int getValue() {
+    public int getValue() {
         return value;
     }
 
-    public synchronized void increase(){
-        value += 1;
+    public void increase(){
+        updater.incrementAndGet(this);
     }
 
     @Override
@@ -1,74 +1,63 @@
 package server.data;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * @param author author of the post
  * @param postId id of the post
  * @param title title of the post
  * @param content content of the post
- * @param comments list of comments left on the post, thread-safe list
- * @param ratings list of ratings left on the post, thread-safe set (a user can only rate once)
+ * @param comments comments left on the post, thread-safe append only list
+ * @param ratings ratings left on the post indexed by user, thread-safe (a user can only rate once)
  * @param timesChecked times the post have been checked for wincoins rewards
+ * @param rendering cached format of the post, not saved
  */
-public record Post(String author, int postId, String title, String content, CopyOnWriteArrayList<Comment> comments, CopyOnWriteArraySet<Rating> ratings, IntWrapper timesChecked) implements Comparable<Post>{
+public record Post(String author, int postId, String title, String content, AppendLog<Comment> comments, RatingMap ratings, IntWrapper timesChecked,
+                   @JsonIgnore RenderCache rendering) implements Comparable<Post>{
+
+    public Post {
+        //restored posts start without a cached format
+        if (rendering == null) rendering = new RenderCache();
+    }
 
     public Post(String userId, int postId, String title, String content){
-        this(userId, postId, title, content, new CopyOnWriteArrayList<>(), new CopyOnWriteArraySet<>(), new IntWrapper(0));
+        this(userId, postId, title, content, new AppendLog<>(), new RatingMap(), new IntWrapper(0), new RenderCache());
     }
 
     /**
-     * Synchronized method to add a rating
+     * Add a rating, if the user didn't rate the post yet
      * @param vote rating to add
      */
-    public synchronized boolean rate(String user, int vote) {
-        return this.ratings.add(new Rating(user, vote, System.currentTimeMillis()));
+    public boolean rate(String user, int vote) {
+        if (!this.ratings.add(new Rating(user, vote, System.currentTimeMillis()))) return false;
+        rendering.invalidate();
+        return true;
     }
 
     /**
-     * Synchronized method to add a comment
+     * Add a comment at the end of the comments
      * @param comment comment to add
      */
-    public synchronized void comment(Comment comment){
+    public void comment(Comment comment){
         this.comments().add(comment);
+        rendering.invalidate();
     }
 
     /**
      * @return pair with <sum of positive ratings, sum of negative ratings>
      */
-    public synchronized Rating.Pair totalRating(){
-        int pos = 0;
-        int neg = 0;
-        for (Rating like : ratings){
-            if (like.rate() > 0) {
-                pos++;
-            } else {
-                neg++;
-            }
-        }
-        return new Rating.Pair(pos, neg);
+    public Rating.Pair totalRating(){
+        return ratings.totals();
     }
 
     /**
-     * Variation of Post#totalRating that only counts new ratings
-     * @param lastTimeChecked timestamp of the last check in milliseconds
+     * Variation of Post#totalRating that only counts new ratings, called once at each rewards check
      * @return pair with <sum of positive ratings, sum of negative ratings> added after the last check
      */
-    public synchronized Rating.Pair newTotalRating(long lastTimeChecked){
-        int pos = 0;
-        int neg = 0;
-        for (Rating like : ratings){
-            if (like.timestamp() < lastTimeChecked) continue; //only sum the new likes
-            if (like.rate() < 0){
-                neg++;
-            }else{
-                pos++;
-            }
-        }
-        return new Rating.Pair(pos, neg);
+    public Rating.Pair newTotalRating(){
+        return ratings.takeSinceLastCheck();
     }
 
     /**
@@ -86,24 +75,26 @@ public record Post(String author, int postId, String title, String content, Copy
     public String format(){
 
         Rating.Pair rating = totalRating();
-        String formattedComments = "";
+        StringBuilder formatted = new StringBuilder()
+                .append("Titolo: ").append(title()).append('\n')
+                .append("Contenuto: ").append(content()).append('\n')
+                .append("Voti: ").append(rating.pos()).append(" positivi, ").append(rating.neg()).append(" negativi").append('\n')
+                .append("Commenti:\n");
 
-        if (comments.size() == 0){
-            formattedComments = "No comments yet.\n";
+        if (comments.isEmpty()){
+            formatted.append("No comments yet.\n");
         }else for (Comment comment : comments()) {
-            formattedComments = formattedComments.concat(comment.format());
+            formatted.append(comment.format());
         }
 
-        return "Titolo: " + title() + '\n' +
-               "Contenuto: " + content() + '\n' +
-               "Voti: " + rating.pos() + " positivi, " + rating.neg() + " negativi" + '\n' +
-               "Commenti:\n" + formattedComments;
+        return formatted.toString();
     }
+
     /**
-     * @return formatted post as String, adding the author to distinguish rewinned posts in blog
+     * @return formatted post encoded in UTF-8, rendered again only if the post changed since the last call
      */
-    public String formatR(){
-        return "Autore: " + author() + '\n' + format();
+    public byte[] encoded() {
+        return rendering.get(this::format);
     }
 
     /**
@@ -116,14 +107,9 @@ public record Post(String author, int postId, String title, String content, Copy
     }
 
     /**
-     * @return List of the curators of the post, aka the users who left a positive rating
+     * @return set of the curators of the post, aka the users who left a positive rating
      */
-    public Collection<String> postCurators() {
-        List<String> curators = new ArrayList<>();
-        for (Rating rating: ratings){
-            //curators are the users that left a like
-           if (rating.rate() > 0) curators.add(rating.user());
-        }
-        return curators;
+    public UserSet postCurators() {
+        return ratings.curators();
     }
 }
@@ -0,0 +1,123 @@
+package server.data;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Posts indexed directly by their id. Ids are given by the store in increasing order starting from 1, so the posts
+ * are kept in segments of an array grown as the ids go up, and an id is never boxed to look up its post.
+ * Reads don't lock, writes to a slot are atomic and only adding a segment is serialized.
+ */
+public class PostStore implements Iterable<Post> {
+
+    private static final int SEGMENT_BITS = 12;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+
+    //only the references to the segments are copied when growing, the slots are never moved
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private volatile AtomicReferenceArray<Post>[] segments = new AtomicReferenceArray[4];
+    //last id given
+    private final AtomicInteger lastId = new AtomicInteger();
+
+    /**
+     * @return a new post id, higher than all the ids given or restored
+     */
+    public int nextId() {
+        return lastId.incrementAndGet();
+    }
+
+    /**
+     * @return the highest post id given or restored
+     */
+    public int lastId() {
+        return lastId.get();
+    }
+
+    /**
+     * @param id id of the post
+     * @return the post, null if there is no post with the id
+     */
+    public Post get(int id) {
+        AtomicReferenceArray<Post> segment = segmentOf(id);
+        return segment != null ? segment.get(id & (SEGMENT_SIZE - 1)) : null;
+    }
+
+    public boolean containsKey(int id) {
+        return get(id) != null;
+    }
+
+    /**
+     * Store a post, either new or restored, restored ids also move the next id given past them.
+     *
+     * @param post post to store, its id must be positive
+     */
+    public void put(Post post) {
+        int id = post.postId();
+        if (id <= 0) throw new IllegalArgumentException("Invalid post id: " + id);
+        lastId.accumulateAndGet(id, Math::max);
+        AtomicReferenceArray<Post> segment = segmentOf(id);
+        if (segment == null) segment = addSegment(id >>> SEGMENT_BITS);
+        segment.set(id & (SEGMENT_SIZE - 1), post);
+    }
+
+    /**
+     * @param id id of the post
+     * @param post post expected with the id
+     * @return true if the post was removed, false if the id held another post or none
+     */
+    public boolean remove(int id, Post post) {
+        AtomicReferenceArray<Post> segment = segmentOf(id);
+        return segment != null && segment.compareAndSet(id & (SEGMENT_SIZE - 1), post, null);
+    }
+
+    /**
+     * @return iterator over the posts in order of id, seeing the changes made while iterating or not
+     */
+    @Override
+    public Iterator<Post> iterator() {
+        return new Iterator<>() {
+            private final int last = lastId.get();
+            private int id = 0;
+            private Post next = advance();
+
+            private Post advance() {
+                while (id < last) {
+                    Post post = get(++id);
+                    if (post != null) return post;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Post next() {
+                if (next == null) throw new NoSuchElementException();
+                Post post = next;
+                next = advance();
+                return post;
+            }
+        };
+    }
+
+    private AtomicReferenceArray<Post> segmentOf(int id) {
+        if (id <= 0) return null;
+        AtomicReferenceArray<Post>[] current = segments;
+        int index = id >>> SEGMENT_BITS;
+        return index < current.length ? current[index] : null;
+    }
+
+    private synchronized AtomicReferenceArray<Post> addSegment(int index) {
+        AtomicReferenceArray<Post>[] current = segments;
+        if (index >= current.length) current = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+        if (current[index] == null) current[index] = new AtomicReferenceArray<>(SEGMENT_SIZE);
+        segments = current;
+        return current[index];
+    }
+}
@@ -0,0 +1,175 @@
+package server.data;
+
+import java.util.Arrays;
+
+/**
+ * Posts containing a term, with the times the term appears in each of them, ordered by post id.
+ * Entries are compressed as varints, the id as the gap from the previous one, so most entries take two bytes.
+ * <p>
+ * New posts have the highest ids and are appended at the end without copying the list, removals and late
+ * inserts rewrite it. Writes are serialized, reads don't lock and see the list as it was when they started.
+ */
+public class PostingList {
+
+    private record Snapshot(byte[] data, int length, int size, int lastId) {}
+
+    //the bytes up to length never change, appends write after it before publishing the new snapshot
+    private volatile Snapshot snapshot = new Snapshot(new byte[16], 0, 0, 0);
+
+    /**
+     * @param postId id of the post
+     * @param frequency times the term appears in the post, positive
+     */
+    public synchronized void add(int postId, int frequency) {
+        Snapshot current = snapshot;
+        if (postId <= current.lastId) {
+            insert(postId, frequency);
+            return;
+        }
+        byte[] data = current.data;
+        //two varints take at most 10 bytes
+        if (current.length + 10 > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, current.length + 10));
+        int length = putVarint(data, current.length, postId - current.lastId);
+        length = putVarint(data, length, frequency);
+        snapshot = new Snapshot(data, length, current.size + 1, postId);
+    }
+
+    /**
+     * @param other list with ids all higher than those in this list
+     */
+    public synchronized void addAll(PostingList other) {
+        Cursor cursor = other.cursor();
+        while (cursor.next()) add(cursor.postId(), cursor.frequency());
+    }
+
+    /**
+     * @param postId id of the post to remove
+     * @return false if the post was not in the list
+     */
+    public synchronized boolean remove(int postId) {
+        Snapshot current = snapshot;
+        int[] ids = new int[current.size];
+        int[] frequencies = new int[current.size];
+        int size = 0;
+        boolean found = false;
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            if (cursor.postId() == postId) {
+                found = true;
+                continue;
+            }
+            ids[size] = cursor.postId();
+            frequencies[size++] = cursor.frequency();
+        }
+        if (found) snapshot = encode(ids, frequencies, size);
+        return found;
+    }
+
+    /**
+     * @return number of posts in the list
+     */
+    public int size() {
+        return snapshot.size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return cursor over the list as it is now, positioned before the first entry
+     */
+    public Cursor cursor() {
+        return new Cursor(snapshot);
+    }
+
+    //insert or replace an entry in the middle, rewriting the list
+    private void insert(int postId, int frequency) {
+        Snapshot current = snapshot;
+        int[] ids = new int[current.size + 1];
+        int[] frequencies = new int[current.size + 1];
+        int size = 0;
+        boolean added = false;
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            if (!added && cursor.postId() >= postId) {
+                ids[size] = postId;
+                frequencies[size++] = frequency;
+                added = true;
+                if (cursor.postId() == postId) continue;
+            }
+            ids[size] = cursor.postId();
+            frequencies[size++] = cursor.frequency();
+        }
+        if (!added) {
+            ids[size] = postId;
+            frequencies[size++] = frequency;
+        }
+        snapshot = encode(ids, frequencies, size);
+    }
+
+    private static Snapshot encode(int[] ids, int[] frequencies, int size) {
+        byte[] data = new byte[Math.max(16, size * 10)];
+        int length = 0;
+        int last = 0;
+        for (int i = 0; i < size; i++) {
+            length = putVarint(data, length, ids[i] - last);
+            length = putVarint(data, length, frequencies[i]);
+            last = ids[i];
+        }
+        return new Snapshot(Arrays.copyOf(data, Math.max(16, length)), length, size, last);
+    }
+
+    //7 bits for each byte, the high bit set on all the bytes but the last
+    private static int putVarint(byte[] data, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            data[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Reads the entries of a list in order of post id.
+     */
+    public static class Cursor {
+        private final byte[] data;
+        private final int length;
+        private int offset = 0;
+        private int postId = 0;
+        private int frequency = 0;
+
+        private Cursor(Snapshot snapshot) {
+            this.data = snapshot.data;
+            this.length = snapshot.length;
+        }
+
+        /**
+         * @return false if there are no more entries
+         */
+        public boolean next() {
+            if (offset >= length) return false;
+            postId += readVarint();
+            frequency = readVarint();
+            return true;
+        }
+
+        public int postId() {
+            return postId;
+        }
+
+        public int frequency() {
+            return frequency;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = data[offset++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package server.data;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ratings of a post with the ids of the users who left them, so checking for a previous vote doesn't scan the others.
+ * The totals, the curators and the ratings added since the last rewards check are updated at each rating,
+ * so reading them doesn't scan the ratings either. Saved as a json array.
+ * <p>
+ * The net rating of the last RECENT_DAYS days is kept in a ring of day buckets, one for each day of the window,
+ * so ranking a post by its recent ratings reads a few counters instead of walking the ratings.
+ */
+public class RatingMap implements Iterable<Rating> {
+
+    //days counted by recentNet, today included
+    public static final int RECENT_DAYS = 7;
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final AppendLog<Rating> ratings = new AppendLog<>();
+    //ids of the users who rated the post
+    private final IntSet raters = new IntSet();
+    //users who left a positive rating
+    private final UserSet curators = new UserSet();
+    //positive count in the high 32 bits and negative count in the low ones, so a pair is read and reset atomically
+    private final AtomicLong totals = new AtomicLong();
+    private final AtomicLong sinceLastCheck = new AtomicLong();
+    //day of the bucket in the high 32 bits and its net rating in the low ones, the bucket of a day is day % RECENT_DAYS
+    private final AtomicLongArray recent = new AtomicLongArray(RECENT_DAYS);
+
+    public RatingMap() {}
+
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public RatingMap(Collection<Rating> restored) {
+        for (Rating rating : restored) add(rating);
+    }
+
+    /**
+     * @param rating rating to add
+     * @return false if the user already rated the post
+     */
+    public boolean add(Rating rating) {
+        int user = UserIds.idOf(rating.user());
+        if (!raters.add(user)) return false;
+        ratings.add(rating);
+        long delta = rating.rate() > 0 ? 1L << 32 : 1L;
+        if (rating.rate() > 0) curators.addId(user);
+        totals.addAndGet(delta);
+        sinceLastCheck.addAndGet(delta);
+        addRecent(Math.floorDiv(rating.timestamp(), DAY_MILLIS), rating.rate() > 0 ? 1 : -1);
+        return true;
+    }
+
+    //a bucket holding an older day is reused, a rating older than the day in its bucket is out of the window
+    private void addRecent(long day, int net) {
+        recent.updateAndGet(Math.floorMod(day, RECENT_DAYS), bucket -> {
+            long bucketDay = bucket >> 32;
+            if (bucketDay > day) return bucket;
+            int count = bucketDay == day ? (int) bucket : 0;
+            return day << 32 | ((count + net) & 0xFFFFFFFFL);
+        });
+    }
+
+    /**
+     * @return pair with <number of positive ratings, number of negative ratings>
+     */
+    public Rating.Pair totals() {
+        return unpack(totals.get());
+    }
+
+    /**
+     * Get the ratings added since the last call and start counting again, called at each rewards check.
+     *
+     * @return pair with <number of positive ratings, number of negative ratings> added since the last call
+     */
+    public Rating.Pair takeSinceLastCheck() {
+        return unpack(sinceLastCheck.getAndSet(0));
+    }
+
+    /**
+     * Count again the ratings since the last rewards check, used when the ratings are restored.
+     *
+     * @param lastCheck timestamp of the last rewards check in milliseconds
+     */
+    public void resetLastCheck(long lastCheck) {
+        long count = 0;
+        for (Rating rating : ratings) {
+            if (rating.timestamp() >= lastCheck) count += rating.rate() > 0 ? 1L << 32 : 1L;
+        }
+        sinceLastCheck.set(count);
+    }
+
+    /**
+     * @return live set of the users who left a positive rating, must not be modified
+     */
+    public UserSet curators() {
+        return curators;
+    }
+
+    /**
+     * @param now timestamp in milliseconds
+     * @return positive ratings minus negative ratings added in the RECENT_DAYS days up to the day of now
+     */
+    public int recentNet(long now) {
+        long today = Math.floorDiv(now, DAY_MILLIS);
+        int net = 0;
+        for (int i = 0; i < RECENT_DAYS; i++) {
+            long bucket = recent.get(i);
+            long day = bucket >> 32;
+            if (day > today - RECENT_DAYS && day <= today) net += (int) bucket;
+        }
+        return net;
+    }
+
+    public int size() {
+        return ratings.size();
+    }
+
+    @Override
+    public Iterator<Rating> iterator() {
+        return ratings.iterator();
+    }
+
+    @JsonValue
+    public List<Rating> values() {
+        return ratings.toList();
+    }
+
+    private static Rating.Pair unpack(long packed) {
+        return new Rating.Pair((int) (packed >>> 32), (int) packed);
+    }
+}
@@ -0,0 +1,49 @@
+package server.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * UTF-8 rendering of a post, kept until the post changes. Every change bumps the version,
+ * a cached rendering is only served if it was made at the current version.
+ */
+public class RenderCache {
+
+    private final AtomicLong version = new AtomicLong();
+    private volatile Rendering cached = null;
+
+    private record Rendering(long version, byte[] bytes) {
+    }
+
+    /**
+     * Invalidate the cached rendering, to be called after every change of the post.
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return the cached rendering if still valid, null otherwise
+     */
+    public byte[] peek() {
+        Rendering rendering = cached;
+        return rendering != null && rendering.version() == version.get() ? rendering.bytes() : null;
+    }
+
+    /**
+     * @param render formats the post, called only if the cached rendering is missing or outdated
+     * @return the UTF-8 rendering of the post
+     */
+    public byte[] get(Supplier<String> render) {
+        //read the version before rendering: a change made meanwhile leaves an outdated entry, never a wrong one
+        long current = version.get();
+        Rendering rendering = cached;
+        if (rendering != null && rendering.version() == current) return rendering.bytes();
+
+        byte[] bytes = render.get().getBytes(StandardCharsets.UTF_8);
+        cached = new Rendering(current, bytes);
+        return bytes;
+    }
+
+}
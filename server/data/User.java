@@ -3,19 +3,28 @@ package server.data;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import server.IWinImpl;
 
-import java.sql.Timestamp;
+import java.text.DecimalFormatSymbols;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
-public record User(String username, String password, Set<String> tags, CopyOnWriteArraySet<Post> blog,
-                   CopyOnWriteArraySet<String> followedUsers,
-                   CopyOnWriteArrayList<Transaction> wallet) {
+public record User(String username, String password, Set<String> tags, ConcurrentSkipListSet<Post> blog,
+                   Set<String> followedUsers,
+                   Wallet wallet) {
+
+    public User {
+        //ids are given at registration and restore, the followed users are kept by id
+        UserIds.idOf(username);
+        followedUsers = new UserSet(followedUsers != null ? followedUsers : Set.of());
+        if (wallet == null) wallet = new Wallet();
+    }
 
     //for registration only
     public User(String username, String password, Set<String> tags) {
-        this(username, password, tags, new CopyOnWriteArraySet<>(), new CopyOnWriteArraySet<>(), new CopyOnWriteArrayList<>());
+        this(username, password, tags, new ConcurrentSkipListSet<>(), null, new Wallet());
     }
 
     @Override
@@ -23,40 +32,95 @@ public record User(String username, String password, Set<String> tags, CopyOnWri
         return obj instanceof User user && this.username.equals(user.username());
     }
 
-    public synchronized void followUser(String newFollower) {
-        this.followedUsers.add(newFollower);
-    }
-
-    public synchronized void unfollowUser(String oldFollower) {
-        this.followedUsers.remove(oldFollower);
+    /**
+     * Follow a user, updating the followers index too. Both sets are thread-safe, calls for the same followed user
+     * are serialized by Timelines#follow and Timelines#unfollow so the two sets change together.
+     *
+     * @param toFollow username of the user to follow
+     * @return false if the user was already followed
+     */
+    public boolean followUser(String toFollow) {
+        if (!this.followedUsers.add(toFollow)) return false;
+        IWinImpl.followersOf(toFollow).add(username);
+        return true;
     }
 
     /**
-     * Overridden record getter to filter out removed posts from the blog
+     * Stop following a user, updating the followers index too.
+     *
+     * @param toUnfollow username of the user to unfollow
+     * @return false if the user was not followed
      */
-    @Override
-    public synchronized CopyOnWriteArraySet<Post> blog() {
-        blog.removeIf(p -> !this.username.equals(p.author()) && !IWinImpl.postLookup.containsKey(p.postId()));
-        return blog;
+    public boolean unfollowUser(String toUnfollow) {
+        if (!this.followedUsers.remove(toUnfollow)) return false;
+        IWinImpl.followersOf(toUnfollow).remove(username);
+        return true;
     }
 
-    //Getter used only to restore data, when the post lookup is not filled yet
-    public Set<Post> blogUnchecked() {
-        return blog;
+    public float totalWallet() {
+        return (float) wallet.balance();
     }
 
-    public float totalWallet() {
-        float counter = 0;
-        for (Transaction t : wallet()) {
-            counter += t.reward();
+    /**
+     * @param reward wincoins awarded
+     * @param timestamp when the reward was given, or the start of the period for the rewards rolled up
+     * @param count number of rewards in the transaction
+     */
+    public record Transaction(float reward, long timestamp, int count) {
+
+        //same text of a java.sql.Timestamp and of %.2f, without a formatter for each row
+        private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+                .withZone(ZoneId.systemDefault());
+        private static final char DECIMAL_SEPARATOR = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT))
+                .getDecimalSeparator();
+
+        public Transaction {
+            //transactions saved before the rollups are single rewards
+            if (count < 1) count = 1;
+        }
+
+        public Transaction(float reward, long timestamp) {
+            this(reward, timestamp, 1);
+        }
+
+        /**
+         * @param other transaction with the same timestamp
+         * @return transaction summing the rewards of both
+         */
+        public Transaction merge(Transaction other) {
+            return new Transaction(reward + other.reward, timestamp, count + other.count);
+        }
+
+        /**
+         * @param row builder to append the line of the transaction to
+         * @return the builder
+         */
+        public StringBuilder appendTo(StringBuilder row) {
+            DATE_TIME.formatTo(Instant.ofEpochMilli(timestamp), row);
+            //fraction of the second as a Timestamp prints it, without the trailing zeros
+            int millis = (int) Math.floorMod(timestamp, 1000L);
+            row.append('.');
+            if (millis == 0) row.append('0');
+            else {
+                if (millis < 100) row.append('0');
+                if (millis < 10) row.append('0');
+                while (millis % 10 == 0) millis /= 10;
+                row.append(millis);
+            }
+
+            row.append(" : Rewarded ");
+            long cents = Math.round(Math.abs((double) reward) * 100);
+            if (reward < 0 && cents > 0) row.append('-');
+            row.append(cents / 100).append(DECIMAL_SEPARATOR);
+            if (cents % 100 < 10) row.append('0');
+            row.append(cents % 100).append(" Wincoins");
+            if (count > 1) row.append(" in ").append(count).append(" rewards");
+            return row.append('\n');
         }
-        return counter;
-    }
 
-    public record Transaction(float reward, long timestamp) {
         @Override
         public String toString() {
-            return String.format("%s : Rewarded %.2f Wincoins\n", new Timestamp(timestamp), reward());
+            return appendTo(new StringBuilder(64)).toString();
         }
     }
 }
@@ -0,0 +1,66 @@
+package server.data;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary giving each username a dense int id, assigned the first time the name is seen (at registration or
+ * while restoring), so the indexes of the users can be kept in primitive sets and arrays.
+ * Ids are not saved, the saved data keeps the names.
+ */
+public class UserIds {
+
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    //written before the id is published in ids, so whoever got an id also sees its name
+    private static volatile String[] names = new String[1024];
+    private static volatile int count = 0;
+
+    private UserIds() {}
+
+    /**
+     * @param username name of the user
+     * @return id of the user, assigning a new one if the name has none
+     */
+    public static int idOf(String username) {
+        Integer id = ids.get(username);
+        return id != null ? id : assign(username);
+    }
+
+    /**
+     * @param username name of the user
+     * @return id of the user, -1 if the name has none
+     */
+    public static int find(String username) {
+        Integer id = ids.get(username);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @param id id of the user
+     * @return name of the user
+     */
+    public static String nameOf(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return number of ids assigned, all the ids are lower than it
+     */
+    public static int count() {
+        return count;
+    }
+
+    private static synchronized int assign(String username) {
+        Integer id = ids.get(username);
+        if (id != null) return id;
+        int next = count;
+        String[] current = names;
+        if (next == current.length) current = Arrays.copyOf(current, next * 2);
+        current[next] = username;
+        names = current;
+        ids.put(username, next);
+        count = next + 1;
+        return next;
+    }
+}
@@ -0,0 +1,96 @@
+package server.data;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Thread-safe set of users holding their ids from UserIds, seen as a set of usernames.
+ * Names are translated only when the set is iterated, to render or save it, the set is saved as a json array of names.
+ */
+public class UserSet extends AbstractSet<String> {
+
+    private final IntSet ids = new IntSet();
+
+    public UserSet() {}
+
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public UserSet(Collection<String> usernames) {
+        for (String username : usernames) add(username);
+    }
+
+    @Override
+    public boolean add(String username) {
+        return ids.add(UserIds.idOf(username));
+    }
+
+    /**
+     * @param id id of the user to add
+     * @return false if the user was already in the set
+     */
+    public boolean addId(int id) {
+        return ids.add(id);
+    }
+
+    @Override
+    public boolean remove(Object username) {
+        //a name without an id can't be in any set
+        return username instanceof String name && ids.remove(UserIds.find(name));
+    }
+
+    @Override
+    public boolean contains(Object username) {
+        return username instanceof String name && ids.contains(UserIds.find(name));
+    }
+
+    /**
+     * @param id id of the user
+     * @return true if the user is in the set
+     */
+    public boolean containsId(int id) {
+        return ids.contains(id);
+    }
+
+    /**
+     * @return copy of the ids of the users, in no particular order
+     */
+    public int[] ids() {
+        return ids.toArray();
+    }
+
+    @Override
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * @return iterator over the names of a copy of the set, removing through it removes from the set
+     */
+    @Override
+    public Iterator<String> iterator() {
+        int[] snapshot = ids.toArray();
+        return new Iterator<>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < snapshot.length;
+            }
+
+            @Override
+            public String next() {
+                if (next == snapshot.length) throw new NoSuchElementException();
+                return UserIds.nameOf(snapshot[next++]);
+            }
+
+            @Override
+            public void remove() {
+                if (next == 0) throw new IllegalStateException();
+                ids.remove(snapshot[next - 1]);
+            }
+        };
+    }
+}
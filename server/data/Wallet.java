@@ -0,0 +1,135 @@
+package server.data;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Wincoins of a user: the balance, updated at each reward, and the ledger of the rewards ordered by time.
+ * <p>
+ * Rewards older than RECENT_DAYS are rolled up into a transaction for each day, and those older than
+ * DAILY_MONTHS into a transaction for each month, so the ledger doesn't grow with every reward check.
+ * Saved as an object with the ledger, wallets saved as a plain array of transactions are still read.
+ */
+public class Wallet {
+
+    //rewards kept one by one
+    static final int RECENT_DAYS = 30;
+    //daily rollups kept before being merged by month
+    static final int DAILY_MONTHS = 12;
+
+    //transactions indexed by timestamp, rollups use the start of their day or month
+    private final ConcurrentNavigableMap<Long, User.Transaction> ledger = new ConcurrentSkipListMap<>();
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    //bits of the double holding the balance
+    private final AtomicLong balance = new AtomicLong(Double.doubleToLongBits(0));
+    //transactions before these timestamps are already rolled up, not saved so the first check after a restore goes through all of them
+    private long dailyUntil = 0;
+    private long monthlyUntil = 0;
+
+    public Wallet() {}
+
+    public Wallet(List<User.Transaction> ledger) {
+        if (ledger != null) ledger.forEach(this::add);
+    }
+
+    /**
+     * Read a saved wallet, either an object with the ledger or, for wallets saved before the ledger,
+     * an array of transactions.
+     *
+     * @param saved json of the wallet
+     * @return the restored wallet
+     */
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public static Wallet fromJson(JsonNode saved) {
+        JsonNode transactions = saved.isArray() ? saved : saved.path("ledger");
+        return new Wallet(mapper.convertValue(transactions, new TypeReference<List<User.Transaction>>() {}));
+    }
+
+    /**
+     * @param transaction reward to add to the wallet
+     */
+    public void add(User.Transaction transaction) {
+        ledger.merge(transaction.timestamp(), transaction, User.Transaction::merge);
+        balance.updateAndGet(bits -> Double.doubleToLongBits(Double.longBitsToDouble(bits) + transaction.reward()));
+    }
+
+    /**
+     * @return the wincoins in the wallet
+     */
+    public double balance() {
+        return Double.longBitsToDouble(balance.get());
+    }
+
+    /**
+     * @return live view of the transactions, ordered by time
+     */
+    @JsonProperty("ledger")
+    public Collection<User.Transaction> transactions() {
+        return ledger.values();
+    }
+
+    /**
+     * @param timestamp timestamp of the last transaction already read, 0 to start from the first one
+     * @return live view of the transactions after the timestamp, ordered by time
+     */
+    public Collection<User.Transaction> transactionsAfter(long timestamp) {
+        return ledger.tailMap(timestamp, false).values();
+    }
+
+    /**
+     * Roll up the transactions that got older than RECENT_DAYS and DAILY_MONTHS since the last call.
+     *
+     * @param now current time in milliseconds
+     */
+    public synchronized void compact(long now) {
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDate today = Instant.ofEpochMilli(now).atZone(zone).toLocalDate();
+
+        long dailyCutoff = startOf(today.minusDays(RECENT_DAYS), zone);
+        if (dailyCutoff > dailyUntil) {
+            rollUp(dailyUntil, dailyCutoff, day -> day, zone);
+            dailyUntil = dailyCutoff;
+        }
+        long monthlyCutoff = startOf(today.minusMonths(DAILY_MONTHS).withDayOfMonth(1), zone);
+        if (monthlyCutoff > monthlyUntil) {
+            rollUp(monthlyUntil, monthlyCutoff, day -> day.withDayOfMonth(1), zone);
+            monthlyUntil = monthlyCutoff;
+        }
+    }
+
+    //merge the transactions in [from, to) into one for each period, placed at the start of the period
+    private void rollUp(long from, long to, UnaryOperator<LocalDate> periodOf, ZoneId zone) {
+        Map<Long, User.Transaction> rollups = new HashMap<>();
+        Iterator<User.Transaction> range = ledger.subMap(from, true, to, false).values().iterator();
+        while (range.hasNext()) {
+            User.Transaction transaction = range.next();
+            LocalDate day = Instant.ofEpochMilli(transaction.timestamp()).atZone(zone).toLocalDate();
+            long period = startOf(periodOf.apply(day), zone);
+            rollups.merge(period, new User.Transaction(transaction.reward(), period, transaction.count()), User.Transaction::merge);
+            range.remove();
+        }
+        rollups.forEach((period, rollup) -> ledger.merge(period, rollup, User.Transaction::merge));
+    }
+
+    private static long startOf(LocalDate day, ZoneId zone) {
+        return day.atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public String toString() {
+        return ledger.values().toString();
+    }
+}